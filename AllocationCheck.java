@@ -0,0 +1,324 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class AllocationCheck {
+	private static final int ROUNDS = 5;		//Warm-up runs before measuring
+	private static com.sun.management.ThreadMXBean threads;
+	private static int failures = 0;
+
+
+	/**
+	 * Runs the hot paths on generated input and checks how much memory
+	 * each one allocates, on every thread it uses, against a budget.
+	 * Every path is warmed up first, so only steady-state allocation is
+	 * measured. Exits with status 1 if any budget is exceeded, so a change
+	 * that brings back allocation in a loop shows up here.
+	 *
+	 * Budgets are per input byte for streaming loops, which should not
+	 * allocate at all, and per call, per block or per file where some
+	 * allocation is part of the design.
+	 **/
+	public static void main(String[] args) throws Exception {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("Allocation counting is not supported by this JVM");
+			System.exit(2);
+		}
+		threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		byte[] text = text(1 << 22, 5);
+		PrintStream console = System.out;
+
+		/*
+		 * Streaming loops: nothing per byte
+		 */
+		Histogram histogram = new Histogram();
+		check("Histogram.add", perByte(text.length, () -> {
+			histogram.clear();
+			histogram.add(text, 0, text.length);
+		}), 0.001);
+
+		CodeTable table = CodeTable.fromCounts(histogram.counts());
+		BitWriter bits = new BitWriter(text.length);
+		check("CodeTable.encode", perByte(text.length, () -> {
+			bits.reset();
+			for (int i = 0; i < text.length; i++) {
+				table.encode(bits, text[i] & 0xFF);
+			}
+		}), 0.001);
+
+		check("CodeTable.decode", perByte(text.length, () -> {
+			BitReader in = new BitReader(bits.array(), 0, bits.size());
+			for (int i = 0; i < text.length; i++) {
+				table.decode(in);
+			}
+		}), 0.001);
+
+		/*
+		 * Codec: nothing per message once the scratch space has grown
+		 */
+		Codec codec = new Codec(text(1 << 16, 6));
+		byte[] message = text(300, 7);
+		ByteBuffer src = ByteBuffer.wrap(message);
+		ByteBuffer packed = ByteBuffer.allocate(Codec.maxCompressedLength(message.length));
+		ByteBuffer restored = ByteBuffer.allocate(message.length);
+		int messages = 10000;
+		check("Codec round trip, per message", perCall(messages, () -> {
+			for (int i = 0; i < messages; i++) {
+				src.clear();
+				packed.clear();
+				restored.clear();
+				codec.compress(src, packed);
+				packed.flip();
+				codec.decompress(packed, restored);
+			}
+		}), 0);
+
+		/*
+		 * Blocks: tables and the packed copy, but nothing per byte
+		 */
+		ByteArrayOutputStream sink = new ByteArrayOutputStream(1 << 21);
+		byte[] block = new byte[BlockWriter.BLOCK_SIZE];
+		System.arraycopy(text, 0, block, 0, block.length);
+		for (int mode : new int[] {BlockWriter.HUFFMAN, BlockWriter.LZ, BlockWriter.BWT}) {
+			BlockWriter writer = new BlockWriter(sink, mode);
+			check("BlockWriter.write mode " + mode + ", per input byte", perByte(block.length, () -> {
+				sink.reset();
+				writer.write(block, 0, block.length);
+			}), budget(mode));
+		}
+
+		/*
+		 * Whole files: the same file at two sizes. The difference is what
+		 * each extra byte costs, which should be nothing but what the
+		 * format needs; the rest is a fixed cost for headers and buffers.
+		 */
+		File small = file(text, text.length / 2);
+		File large = file(text, text.length);
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		long[] legacyCompress = perFile(small, large, f -> Compress.compressFile(f));
+		long[] legacyRestore = perFile(small, large, f -> Decompress.decompressFile(f + ".011"));
+		long[] sizedCompress = perFile(small, large, f -> Compress.compressSized(f));
+		long[] sizedRestore = perFile(small, large, f -> Decompress.decompressFile(f + ".011"));
+		long[] parallelCompress = perFile(small, large, f -> Compress.compressFile(f, 2));
+		long[] parallelRestore = perFile(small, large, f -> Decompress.decompressFile(f + ".011", 2));
+		System.setOut(console);
+
+		double extra = large.length() - small.length();
+		check("Compress.compressFile, per byte", legacyCompress[1] / extra, 0.01);
+		check("Compress.compressFile, fixed MB", legacyCompress[0] / 1e6, 4);
+		check("Decompress.decompressFile, per byte", legacyRestore[1] / extra, 0.01);
+		check("Decompress.decompressFile, fixed MB", legacyRestore[0] / 1e6, 4);
+		check("Compress.compressSized, per byte", sizedCompress[1] / extra, 0.01);
+		check("Compress.compressSized, fixed MB", sizedCompress[0] / 1e6, 1);
+
+		//The sized reader holds the codes in memory: one byte per byte at most
+		check("Decompress sized format, per byte", sizedRestore[1] / extra, 1);
+		check("Decompress sized format, fixed MB", sizedRestore[0] / 1e6, 4);
+
+		//Coding threads pack each slice into a buffer of its own
+		check("Compress.compressFile -j 2, per byte", parallelCompress[1] / extra, 1);
+		check("Compress.compressFile -j 2, fixed MB", parallelCompress[0] / 1e6, 4);
+
+		//Speculation keeps each piece's output and its symbol starts
+		check("Decompress.decompressFile -j 2, per byte", parallelRestore[1] / extra, 4);
+		check("Decompress.decompressFile -j 2, fixed MB", parallelRestore[0] / 1e6, 4);
+
+		if (failures > 0) {
+			System.out.println(failures + " allocation budget(s) exceeded");
+			System.exit(1);
+		}
+		System.out.println("All allocation budgets met");
+	}
+
+
+	/**
+	 * Bytes per input byte a block may allocate. Huffman and LZ blocks
+	 * only build tables and copy the packed result; BWT needs the suffix
+	 * array and its transform, several ints per byte.
+	 **/
+	private static double budget(int mode) {
+		return (mode == BlockWriter.BWT) ? 32 : 0.1;
+	}
+
+
+	/**
+	 * Body of a measured run, which may throw.
+	 **/
+	private interface Run {
+		void run() throws Exception;
+	}
+
+
+	/**
+	 * Bytes allocated by every thread during the last of ROUNDS runs.
+	 *
+	 * The calling thread is counted exactly. Other threads, like the
+	 * pipeline's reader and writer or a pool of coders, may start and end
+	 * inside the run, and a thread's count is gone once it ends. So a
+	 * Sampler reads every thread's count each millisecond while the run
+	 * goes on, and threads still alive are read once more at the end.
+	 * Only what a thread allocates in its last millisecond can be missed.
+	 **/
+	private static long measure(Run run) throws Exception {
+		long bytes = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long id = Thread.currentThread().getId();
+			Sampler others = new Sampler(id);
+			others.start();
+
+			long before = threads.getThreadAllocatedBytes(id);
+			run.run();
+			bytes = threads.getThreadAllocatedBytes(id) - before;
+
+			bytes += others.finish();
+		}
+		return bytes;
+	}
+
+
+	/**
+	 * Keeps the latest allocation count of every thread but the one
+	 * being measured directly and itself.
+	 **/
+	private static class Sampler extends Thread {
+		private final long caller;
+		private final Map<Long, Long> first = new HashMap<>();	//Count at the start
+		private final Map<Long, Long> last = new HashMap<>();		//Latest count
+		private volatile boolean done;
+
+		Sampler(long caller) {
+			this.caller = caller;
+			setDaemon(true);
+			sample(first);
+		}
+
+		public void run() {
+			while (!done) {
+				sample(last);
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Stops sampling and takes a last reading.
+		 *
+		 * @return	Bytes the other threads allocated while it ran
+		 **/
+		long finish() throws InterruptedException {
+			done = true;
+			join();
+			sample(last);
+
+			long bytes = 0;
+			for (Map.Entry<Long, Long> e : last.entrySet()) {
+				bytes += e.getValue() - first.getOrDefault(e.getKey(), 0L);
+			}
+			return bytes;
+		}
+
+		private synchronized void sample(Map<Long, Long> into) {
+			long[] ids = threads.getAllThreadIds();
+			long[] counts = threads.getThreadAllocatedBytes(ids);
+			for (int i = 0; i < ids.length; i++) {
+				if (ids[i] != caller && ids[i] != getId() && counts[i] >= 0) {
+					into.put(ids[i], counts[i]);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Body of a measured run over a file.
+	 **/
+	private interface FileRun {
+		void run(String file) throws Exception;
+	}
+
+
+	/**
+	 * Allocation of a run over a small and a large file, as the fixed
+	 * cost and the extra cost of the large one.
+	 **/
+	private static long[] perFile(File small, File large, FileRun run) throws Exception {
+		long a = measure(() -> run.run(small.getPath()));
+		long b = measure(() -> run.run(large.getPath()));
+		long extra = Math.max(0, b - a);
+		return new long[] {Math.max(0, a - extra * small.length() / (large.length() - small.length())), extra};
+	}
+
+
+	/**
+	 * Writes the first length bytes of data to a temporary file.
+	 **/
+	private static File file(byte[] data, int length) throws IOException {
+		File f = File.createTempFile("alloc", ".txt");
+		f.deleteOnExit();
+		new File(f + ".011").deleteOnExit();
+		new File(f + ".011-restored").deleteOnExit();
+		try (OutputStream out = new FileOutputStream(f)) {
+			out.write(data, 0, length);
+		}
+		return f;
+	}
+
+
+	private static double perByte(long length, Run run) throws Exception {
+		return (double)measure(run) / length;
+	}
+
+
+	private static double perCall(long calls, Run run) throws Exception {
+		return (double)measure(run) / calls;
+	}
+
+
+	private static void check(String name, double measured, double budget) {
+		boolean ok = measured <= budget;
+		if (!ok) {
+			failures++;
+		}
+		System.out.println(String.format("%-45s %12.4f  budget %10.4f  %s",
+			name, measured, budget, ok ? "ok" : "FAIL"));
+	}
+
+
+	/**
+	 * Text-like input: words of a small vocabulary with spaces and line
+	 * breaks, so every coder has something to work with.
+	 **/
+	private static byte[] text(int length, long seed) {
+		Random r = new Random(seed);
+		String[] words = new String[2000];
+		for (int w = 0; w < words.length; w++) {
+			StringBuilder s = new StringBuilder();
+			int n = 2 + r.nextInt(8);
+			for (int i = 0; i < n; i++) {
+				s.append((char)('a' + (int)Math.min(25, Math.abs(r.nextGaussian()) * 8)));
+			}
+			words[w] = s.toString();
+		}
+
+		byte[] out = new byte[length];
+		int pos = 0;
+		while (pos < length) {
+			String w = words[(int)Math.min(words.length - 1, Math.abs(r.nextGaussian()) * 300)];
+			for (int i = 0; i < w.length() && pos < length; i++) {
+				out[pos++] = (byte)w.charAt(i);
+			}
+			if (pos < length) {
+				out[pos++] = (byte)((r.nextInt(12) == 0) ? '\n' : ' ');
+			}
+		}
+		return out;
+	}
+}
@@ -0,0 +1,276 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class Append {
+	public static final int MAGIC = 0x30313141;	//"011A"
+
+	private RandomAccessFile file;		//Archive being extended
+	private List<Long> segments;		//Start of each appended segment
+	private long end;					//Where the footer starts, if any
+
+
+	/**
+	 * Opens a .011 file for appending. Appended data goes after the existing
+	 * payload as segments of blocks, each with its own tables, followed by
+	 * a footer listing where every segment starts:
+	 * 			count   starts...   footer length   "011A"
+	 * Starts are varint deltas, the last two fields are 4 bytes each.
+	 *
+	 * A file without the footer is a plain .011 file with no segments.
+	 * Files in the sized format are refused, since their decoder stops
+	 * after the stated length and would never see the segments.
+	 *
+	 * Check loadFailure() after instantiating.
+	 *
+	 * @param	name	The archive
+	 * @param	mode	"r" to read, "rw" to append
+	 **/
+	public Append(String name, String mode) {
+		segments = new ArrayList<>();
+
+		try {
+			//"rw" would quietly create a missing archive
+			if (!new File(name).isFile()) {
+				throw new FileNotFoundException(name);
+			}
+			file = new RandomAccessFile(name, mode);
+			end = file.length();
+			if (end > 0 && file.read() == Compress.SIZED) {
+				//The sized format decodes exactly its length and stops
+				System.out.println("Sized files can't hold appended data");
+				close();
+				file = null;
+				return;
+			}
+			readFooter();
+		} catch (FileNotFoundException fnfe) {
+			System.out.println("Unable to load file. Check filename.");
+			file = null;
+		} catch (IOException ioe) {
+			System.out.println("Footer corrupt: " + ioe.getMessage());
+			close();
+			file = null;
+		}
+	}
+
+
+	/**
+	 * Loads the segment list, if the file has one.
+	 **/
+	private void readFooter() throws IOException {
+		long size = file.length();
+		if (size < 8) {
+			return;
+		}
+
+		file.seek(size - 8);
+		int length = file.readInt();
+		if (file.readInt() != MAGIC) {
+			return;
+		}
+		if (length < 0 || length > size - 8) {
+			throw new IOException("bad footer length");
+		}
+
+		end = size - 8 - length;
+		file.seek(end);
+
+		//Starts rise, and all lie before the footer
+		long count = Varint.read(file);
+		if (count < 0 || count > length) {
+			throw new IOException("bad segment count");
+		}
+		long start = 0;
+		for (long i = 0; i < count; i++) {
+			long delta = Varint.read(file);
+			if (delta < 0 || (delta == 0 && i > 0) || delta >= end - start) {
+				throw new IOException("bad segment offset");
+			}
+			start += delta;
+			segments.add(start);
+		}
+	}
+
+
+	/**
+	 * Adds a new segment holding the contents of a file. Nothing already in
+	 * the file is touched, and the work done depends only on the size of
+	 * the new data.
+	 *
+	 * The segment and the new footer go after everything else, and only
+	 * once they are on disk is the trailer written after them. No byte
+	 * already in the file is overwritten, so a crash part way never damages
+	 * the .011 payload, the earlier segments or their footer. A failure
+	 * that isn't a crash cuts the file back to where it was.
+	 *
+	 * @param	source	File to append
+	 * @return	True if the segment was added
+	 **/
+	public boolean append(String source) {
+		long size = -1;
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(source))) {
+			FileChannel channel = file.getChannel();
+			size = file.length();
+			channel.position(size);
+			DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+			/*
+			 * Blocks after the old footer, which is left in place
+			 */
+			BlockWriter blocks = new BlockWriter(out);
+			long raw = blocks.writeAll(in);
+			blocks.finish();
+
+			List<Long> starts = new ArrayList<>(segments);
+			starts.add(size);
+
+			/*
+			 * New footer, made durable before the trailer points at it
+			 */
+			ByteArrayOutputStream footer = new ByteArrayOutputStream();
+			Varint.write(footer, starts.size());
+			long previous = 0;
+			for (long start : starts) {
+				Varint.write(footer, start - previous);
+				previous = start;
+			}
+			footer.writeTo(out);
+			out.flush();
+			channel.force(false);
+
+			out.writeInt(footer.size());
+			out.writeInt(MAGIC);
+			out.flush();
+			channel.force(false);
+
+			segments = starts;
+			end = size + blocks.getWritten();
+
+			System.out.println("Appended " + raw + " bytes as "
+				+ blocks.getWritten() + " bytes");
+			return true;
+		} catch (FileNotFoundException fnfe) {
+			System.out.println("Unable to load file. Check filename.");
+		} catch (IOException ioe) {
+			System.out.println("Failed appending: " + ioe.getMessage());
+			truncate(size);
+		}
+
+		return false;
+	}
+
+
+	/**
+	 * Cuts off a failed append, if it got as far as writing anything.
+	 **/
+	private void truncate(long size) {
+		try {
+			if (size >= 0) {
+				file.setLength(size);
+			}
+		} catch (IOException ioe) {
+			System.out.println("Unable to undo append: " + ioe.getMessage());
+		}
+	}
+
+
+	/**
+	 * Decodes every appended segment, in order, onto the end of a file.
+	 *
+	 * @param	target	File to extend with the restored data
+	 * @return	True if every segment was restored
+	 **/
+	public boolean restore(String target) {
+		if (segments.isEmpty()) {
+			return true;
+		}
+
+		try (OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(target, true))) {
+			FileChannel channel = file.getChannel();
+
+			for (long start : segments) {
+				channel.position(start);
+				BlockReader blocks = new BlockReader(
+					new BufferedInputStream(Channels.newInputStream(channel)));
+				if (!blocks.readAll(out)) {
+					return false;
+				}
+			}
+		} catch (IOException ioe) {
+			System.out.println("Failed restoring segments: " + ioe.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Number of appended segments.
+	 **/
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+
+	/**
+	 * Where each appended segment starts, in order.
+	 **/
+	public List<Long> getSegments() {
+		return Collections.unmodifiableList(segments);
+	}
+
+
+	/**
+	 * Where the footer starts, or the file size if there is none.
+	 **/
+	public long getFooterStart() {
+		return end;
+	}
+
+
+	/**
+	 * Check if the archive was successfully opened.
+	 **/
+	public boolean loadFailure() {
+		return file == null;
+	}
+
+
+	public void close() {
+		try {
+			if (file != null) {
+				file.close();
+			}
+		} catch (IOException ioe) {
+			System.out.println("File broke while closing");
+		}
+	}
+
+
+	/**
+	 * Usage:
+	 * 		java Append <file.011> <file to add>
+	 **/
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: Append <file.011> <file to add>");
+			return;
+		}
+
+		Append a = new Append(args[0], "rw");
+		if (a.loadFailure()) {
+			return;
+		}
+
+		a.append(args[1]);
+		a.close();
+	}
+}
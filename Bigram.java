@@ -0,0 +1,186 @@
+import java.util.Arrays;
+
+public class Bigram {
+	public static final int MAX_PAIRS = 65536 - 256;	//Alphabet stays within 16 bits
+	private static final int MIN_COUNT = 8;				//Rarer pairs don't pay for themselves
+
+	private int[] pairCounts;		//Scratch: occurrences of each byte pair
+	private int[] pairSymbol;		//Scratch: symbol for each pair, or -1
+	private int[] tokens;			//Scratch: the parsed block
+
+
+	/**
+	 * Creates a coder for blocks over an extended alphabet: the 256 byte
+	 * values plus a dictionary of the most frequent byte pairs in the block.
+	 * A pair costs one code instead of two, so a common bigram can go below
+	 * one bit per byte, and the decoder writes two bytes per step.
+	 *
+	 * The scratch arrays are kept between blocks.
+	 **/
+	public Bigram() {
+		pairCounts = new int[65536];
+		pairSymbol = new int[65536];
+		tokens = new int[0];
+	}
+
+
+	/**
+	 * Encodes a region as a bigram block:
+	 * 			pairs   pair list   code lengths   codes
+	 * The pair count is a varint, each pair is 16 bits, and the lengths
+	 * cover 256 + pairs symbols.
+	 *
+	 * @return	False if no pair is common enough to be worth it
+	 **/
+	public boolean encode(byte[] src, int offset, int length, BitWriter out) {
+		int end = offset + length;
+
+		/*
+		 * Count every overlapping pair
+		 */
+		Arrays.fill(pairCounts, 0);
+		for (int i = offset; i + 1 < end; i++) {
+			pairCounts[((src[i] & 0xFF) << 8) | (src[i + 1] & 0xFF)]++;
+		}
+
+		/*
+		 * Keep the most frequent pairs. Count and pair share one long, so
+		 * sorting the longs sorts by count.
+		 */
+		int candidates = 0;
+		for (int p = 0; p < 65536; p++) {
+			if (pairCounts[p] >= MIN_COUNT) {
+				candidates++;
+			}
+		}
+		if (candidates == 0) {
+			return false;
+		}
+
+		long[] ranked = new long[candidates];
+		candidates = 0;
+		for (int p = 0; p < 65536; p++) {
+			if (pairCounts[p] >= MIN_COUNT) {
+				ranked[candidates++] = ((long)pairCounts[p] << 16) | p;
+			}
+		}
+		Arrays.sort(ranked);
+
+		int pairs = Math.min(candidates, MAX_PAIRS);
+		int[] dictionary = new int[pairs];
+		for (int i = 0; i < pairs; i++) {
+			dictionary[i] = (int)(ranked[candidates - 1 - i] & 0xFFFF);
+		}
+		Arrays.sort(dictionary);
+
+		Arrays.fill(pairSymbol, -1);
+		for (int i = 0; i < pairs; i++) {
+			pairSymbol[dictionary[i]] = 256 + i;
+		}
+
+		/*
+		 * Parse greedily: take a pair wherever one starts
+		 */
+		if (tokens.length < length) {
+			tokens = new int[length];
+		}
+		long[] counts = new long[256 + pairs];
+		int n = 0;
+		int i = offset;
+		while (i < end) {
+			int symbol = (i + 1 < end)
+				? pairSymbol[((src[i] & 0xFF) << 8) | (src[i + 1] & 0xFF)]
+				: -1;
+			if (symbol >= 0) {
+				i += 2;
+			} else {
+				symbol = src[i] & 0xFF;
+				i++;
+			}
+			tokens[n++] = symbol;
+			counts[symbol]++;
+		}
+
+		CodeTable table = CodeTable.fromCounts(counts);
+
+		Varint.write(out, pairs);
+		for (int k = 0; k < pairs; k++) {
+			out.writeBits(dictionary[k], 16);
+		}
+		table.write(out);
+		for (int k = 0; k < n; k++) {
+			table.encode(out, tokens[k]);
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Reads the pair dictionary at the start of a bigram block.
+	 *
+	 * @return	Each pair as (first << 8) | second, or NULL if the count is
+	 * 			out of range
+	 **/
+	public static int[] readDictionary(BitReader in) {
+		long pairs = Varint.read(in);
+		if (pairs < 0 || pairs > MAX_PAIRS) {
+			return null;
+		}
+
+		int[] dictionary = new int[(int)pairs];
+		for (int k = 0; k < pairs; k++) {
+			dictionary[k] = in.readBits(16);
+		}
+		return dictionary;
+	}
+
+
+	/**
+	 * Reads the table that follows the dictionary: bytes, then pairs.
+	 *
+	 * @return	The table, or NULL if it is corrupt
+	 **/
+	public static CodeTable readTable(BitReader in, int[] dictionary) {
+		return CodeTable.read(in, 256 + dictionary.length);
+	}
+
+
+	/**
+	 * Decodes a bigram block into raw.
+	 *
+	 * @return	False if the block is corrupt
+	 **/
+	public static boolean decode(BitReader in, byte[] raw) {
+		int[] dictionary = readDictionary(in);
+		if (dictionary == null) {
+			return false;
+		}
+
+		CodeTable table = readTable(in, dictionary);
+		if (table == null) {
+			return false;
+		}
+
+		int pos = 0;
+		while (pos < raw.length) {
+			int symbol = table.decode(in);
+			if (symbol < 0) {
+				return false;
+			}
+
+			if (symbol < 256) {
+				raw[pos++] = (byte)symbol;
+			} else {
+				if (pos + 2 > raw.length) {
+					return false;
+				}
+				int pair = dictionary[symbol - 256];
+				raw[pos++] = (byte)(pair >>> 8);
+				raw[pos++] = (byte)pair;
+			}
+		}
+
+		return true;
+	}
+}
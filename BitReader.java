@@ -0,0 +1,113 @@
+public class BitReader {
+	private byte[] data;				//Source bytes
+	private int next;					//Next byte to load into the window
+	private int limit;					//One past the last readable byte
+	private long window;				//Bits loaded but not yet consumed
+	private int windowsize;				//Number of valid bits in window
+	private long consumed;				//Bits consumed since the start
+	private long total;					//Bits in the region
+
+
+	/**
+	 * Creates a reader over a region of a byte array. Bits are read MSB
+	 * first. Reading past the end of the region yields zeroes, so callers
+	 * must know how many symbols to expect.
+	 *
+	 * @param	data	Source array
+	 * @param	offset	First byte of the region
+	 * @param	length	Number of bytes in the region
+	 **/
+	public BitReader(byte[] data, int offset, int length) {
+		reset(data, offset, length);
+	}
+
+
+	/**
+	 * Points the reader at a new region, as if it had just been created
+	 * over it.
+	 **/
+	public void reset(byte[] data, int offset, int length) {
+		this.data = data;
+		next = offset;
+		limit = offset + length;
+		window = 0;
+		windowsize = 0;
+		consumed = 0;
+		total = (long)length * 8;
+	}
+
+
+	/**
+	 * Returns the next n bits without consuming them.
+	 *
+	 * @param	n	Number of bits, at most 32
+	 **/
+	public int peekBits(int n) {
+		if (windowsize < n) {
+			refill();
+		}
+		return (int)((window >>> (windowsize - n)) & ((1L << n) - 1));
+	}
+
+
+	/**
+	 * Consumes n bits that were previously peeked.
+	 **/
+	public void skipBits(int n) {
+		windowsize -= n;
+		consumed += n;
+	}
+
+
+	/**
+	 * Reads the next n bits as an unsigned value.
+	 *
+	 * @param	n	Number of bits, at most 32
+	 **/
+	public int readBits(int n) {
+		int value = peekBits(n);
+		skipBits(n);
+		return value;
+	}
+
+
+	/**
+	 * Skips to the start of the next byte.
+	 **/
+	public void align() {
+		int partial = (int)(consumed & 7);
+		if (partial != 0) {
+			readBits(8 - partial);
+		}
+	}
+
+
+	/**
+	 * Number of bits consumed since the reader was created.
+	 **/
+	public long position() {
+		return consumed;
+	}
+
+
+	/**
+	 * Returns true once every bit in the region has been consumed.
+	 **/
+	public boolean eof() {
+		return consumed >= total;
+	}
+
+
+	/**
+	 * Tops the window up to at least 57 bits, padding with zeroes past the
+	 * end of the region.
+	 **/
+	private void refill() {
+		while (windowsize <= 56) {
+			int b = (next < limit) ? data[next] & 0xFF : 0;
+			next++;
+			window = (window << 8) | b;
+			windowsize += 8;
+		}
+	}
+}
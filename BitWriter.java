@@ -0,0 +1,151 @@
+import java.io.*;
+
+public class BitWriter {
+	private byte[] data;				//Completed bytes
+	private int size;					//Number of completed bytes
+	private long buffer;				//Bits not yet forming a whole byte
+	private int buffersize;				//Number of bits held in buffer
+
+
+	/**
+	 * Creates an in-memory bit sink. Bits are packed MSB first, the same
+	 * order ByteWriter uses for files.
+	 *
+	 * @param	capacity	Initial number of bytes to reserve
+	 **/
+	public BitWriter(int capacity) {
+		data = new byte[Math.max(capacity, 16)];
+		size = 0;
+		buffer = 0;
+		buffersize = 0;
+	}
+
+
+	/**
+	 * Appends the low n bits of value, most significant bit first.
+	 *
+	 * @param	value	Bits to append
+	 * @param	n		Number of bits, at most 32
+	 **/
+	public void writeBits(int value, int n) {
+		buffer = (buffer << n) | (value & ((1L << n) - 1));
+		buffersize += n;
+
+		while (buffersize >= 8) {
+			buffersize -= 8;
+			if (size == data.length) {
+				grow(size + 1);
+			}
+			data[size++] = (byte)(buffer >>> buffersize);
+		}
+	}
+
+
+	/**
+	 * Pads the current byte with zeroes so the next write starts on a byte
+	 * boundary.
+	 **/
+	public void align() {
+		if (buffersize != 0) {
+			writeBits(0, 8 - buffersize);
+		}
+	}
+
+
+	/**
+	 * Copies whole bytes into the output. The writer must be aligned.
+	 **/
+	public void writeBytes(byte[] src, int offset, int length) {
+		align();
+		if (size + length > data.length) {
+			grow(size + length);
+		}
+		System.arraycopy(src, offset, data, size, length);
+		size += length;
+	}
+
+
+	/**
+	 * Appends the first n bits of an array, most significant bit first,
+	 * as another BitWriter would have packed them.
+	 *
+	 * @param	src		Packed bits
+	 * @param	n		Number of bits to take
+	 **/
+	public void writeBits(byte[] src, long n) {
+		int whole = (int)(n >>> 3);
+		if (buffersize == 0) {
+			writeBytes(src, 0, whole);
+		} else {
+			for (int i = 0; i < whole; i++) {
+				writeBits(src[i] & 0xFF, 8);
+			}
+		}
+
+		int rest = (int)(n & 7);
+		if (rest > 0) {
+			writeBits((src[whole] & 0xFF) >>> (8 - rest), rest);
+		}
+	}
+
+
+	/**
+	 * Number of bits written so far, including any partial byte.
+	 **/
+	public long bitLength() {
+		return (long)size * 8 + buffersize;
+	}
+
+
+	/**
+	 * Number of whole bytes written so far.
+	 **/
+	public int size() {
+		return size;
+	}
+
+
+	/**
+	 * Forgets everything written, keeping the allocated storage.
+	 **/
+	public void reset() {
+		size = 0;
+		buffer = 0;
+		buffersize = 0;
+	}
+
+
+	/**
+	 * Aligns and returns a copy of the written bytes.
+	 **/
+	public byte[] toByteArray() {
+		align();
+		byte[] out = new byte[size];
+		System.arraycopy(data, 0, out, 0, size);
+		return out;
+	}
+
+
+	/**
+	 * Aligns and sends the written bytes to a stream.
+	 **/
+	public void writeTo(OutputStream out) throws IOException {
+		align();
+		out.write(data, 0, size);
+	}
+
+
+	/**
+	 * Direct access to the backing array, valid up to size().
+	 **/
+	public byte[] array() {
+		return data;
+	}
+
+
+	private void grow(int needed) {
+		byte[] bigger = new byte[Math.max(needed, data.length * 2)];
+		System.arraycopy(data, 0, bigger, 0, size);
+		data = bigger;
+	}
+}
@@ -23,6 +23,15 @@ public class Bits implements Comparable<Bits> {
 	}
 
 
+	/**
+	 * Increments the count of the calling byte by n, for bytes that were
+	 * counted in bulk.
+	 **/
+	public void addInstances(long n) {
+		count += n;
+	}
+
+
 	/**
 	 * Sets the count of the calling object.
 	 *
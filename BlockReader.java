@@ -0,0 +1,317 @@
+import java.io.*;
+
+public class BlockReader {
+	private static final int TABLE_BYTES = 1 << 12;		//Most any block's tables take
+	private static final int BIGRAM_BYTES = 1 << 18;	//Most a bigram block's tables take
+
+	private DataInputStream in;		//Source of the blocks
+	private byte[] packed;			//Scratch for the block being read
+	private boolean corrupt;		//Set when a block could not be decoded
+	private CodeTable previous;		//Table of the last Huffman block
+
+
+	/**
+	 * Creates a reader for blocks produced by BlockWriter.
+	 *
+	 * @param	in	Stream positioned at the first block
+	 **/
+	public BlockReader(InputStream in) {
+		this.in = new DataInputStream(in);
+		packed = new byte[1 << 16];
+		corrupt = false;
+	}
+
+
+	/**
+	 * Decodes one byte per code until raw is full.
+	 *
+	 * @return	False if the bits match no code
+	 **/
+	private static boolean decodeBytes(CodeTable table, BitReader bits, byte[] raw) {
+		for (int i = 0; i < raw.length; i++) {
+			int symbol = table.decode(bits);
+			if (symbol < 0) {
+				return false;
+			}
+			raw[i] = (byte)symbol;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Applies the code length changes of a DELTA block to the previous
+	 * table.
+	 *
+	 * @return	The new table, or NULL if the changes are corrupt
+	 **/
+	private CodeTable readDelta(BitReader bits) {
+		int[] lengths = new int[256];
+		for (int s = 0; s < 256; s++) {
+			lengths[s] = previous.getLength(s);
+		}
+
+		long changes = Varint.read(bits);
+		if (changes < 0 || changes > 256) {
+			return null;
+		}
+		for (long c = 0; c < changes; c++) {
+			int s = bits.readBits(8);
+			lengths[s] = bits.readBits(5);
+		}
+
+		CodeTable table = new CodeTable(lengths);
+		return table.isValid() ? table : null;
+	}
+
+
+	/**
+	 * Reads and decodes the next block.
+	 *
+	 * @return	The original bytes, or NULL at the end marker or if the block
+	 * 			is corrupt (see isCorrupt())
+	 **/
+	public byte[] read() throws IOException {
+		int type = in.readUnsignedByte();
+		if (type == BlockWriter.END) {
+			return null;
+		}
+
+		//No writer makes a block larger than BLOCK_SIZE
+		long rawLength = Varint.read(in);
+		long packedLength = Varint.read(in);
+		if (rawLength < 0 || rawLength > BlockWriter.BLOCK_SIZE
+				|| packedLength < 0 || packedLength > Integer.MAX_VALUE) {
+			return fail("block length out of range");
+		}
+
+		if (packed.length < packedLength) {
+			packed = new byte[(int)packedLength];
+		}
+		in.readFully(packed, 0, (int)packedLength);
+
+		byte[] raw = new byte[(int)rawLength];
+		BitReader bits = new BitReader(packed, 0, (int)packedLength);
+
+		switch (type) {
+			case BlockWriter.STORED:
+				if (packedLength < rawLength) {
+					return fail("stored block too short");
+				}
+				System.arraycopy(packed, 0, raw, 0, raw.length);
+				break;
+
+			case BlockWriter.HUFFMAN:
+				previous = CodeTable.read(bits, 256);
+				if (previous == null) {
+					return fail("bad code table");
+				}
+				if (!decodeBytes(previous, bits, raw)) {
+					return fail("code not in table");
+				}
+				break;
+
+			case BlockWriter.REPEAT:
+				if (previous == null) {
+					return fail("no table to repeat");
+				}
+				if (!decodeBytes(previous, bits, raw)) {
+					return fail("code not in table");
+				}
+				break;
+
+			case BlockWriter.DELTA:
+				if (previous == null) {
+					return fail("no table to change");
+				}
+				previous = readDelta(bits);
+				if (previous == null) {
+					return fail("bad table changes");
+				}
+				if (!decodeBytes(previous, bits, raw)) {
+					return fail("code not in table");
+				}
+				break;
+
+			case BlockWriter.BIGRAM:
+				if (!Bigram.decode(bits, raw)) {
+					return fail("bad bigram block");
+				}
+				break;
+
+			case BlockWriter.ORDER1:
+				if (!Order1.decode(bits, raw)) {
+					return fail("bad order-1 block");
+				}
+				break;
+
+			case BlockWriter.LZ:
+				if (!Lz.decode(bits, raw)) {
+					return fail("bad LZ block");
+				}
+				break;
+
+			case BlockWriter.BWT:
+				if (!Bwt.decode(bits, raw)) {
+					return fail("bad block-sorted block");
+				}
+				break;
+
+			case BlockWriter.RLE:
+				if (!RunLength.decode(bits, raw)) {
+					return fail("bad run-length block");
+				}
+				break;
+
+			default:
+				return fail("unknown block type " + type);
+		}
+
+		if (bits.position() > packedLength * 8) {
+			return fail("codes end early");
+		}
+		return raw;
+	}
+
+
+	/**
+	 * Reads the next block's header and the tables at the start of its
+	 * payload, and skips its codes. Huffman tables are followed from block
+	 * to block as read() does, so REPEAT and DELTA blocks have theirs.
+	 *
+	 * Only the tables are read, so on a stream that can skip this costs
+	 * about the same whatever the size of the block.
+	 *
+	 * @return	The header, or NULL at the end marker or if the header or
+	 * 			tables are corrupt (see isCorrupt())
+	 **/
+	public Header skip() throws IOException {
+		int type = in.readUnsignedByte();
+		if (type == BlockWriter.END) {
+			return null;
+		}
+
+		long rawLength = Varint.read(in);
+		long packedLength = Varint.read(in);
+		if (rawLength < 0 || rawLength > BlockWriter.BLOCK_SIZE
+				|| packedLength < 0 || packedLength > Integer.MAX_VALUE) {
+			fail("block length out of range");
+			return null;
+		}
+
+		int prefix = (int)Math.min(packedLength,
+			(type == BlockWriter.BIGRAM) ? BIGRAM_BYTES : TABLE_BYTES);
+		if (packed.length < prefix) {
+			packed = new byte[prefix];
+		}
+		in.readFully(packed, 0, prefix);
+		in.skipNBytes(packedLength - prefix);
+
+		BitReader bits = new BitReader(packed, 0, prefix);
+		CodeTable table = null;
+		boolean ok;
+		switch (type) {
+			case BlockWriter.STORED:
+				ok = true;
+				break;
+
+			case BlockWriter.HUFFMAN:
+				previous = CodeTable.read(bits, 256);
+				table = previous;
+				ok = (table != null);
+				break;
+
+			case BlockWriter.REPEAT:
+				table = previous;
+				ok = (table != null);
+				break;
+
+			case BlockWriter.DELTA:
+				previous = (previous == null) ? null : readDelta(bits);
+				table = previous;
+				ok = (table != null);
+				break;
+
+			case BlockWriter.BIGRAM:
+				int[] dictionary = Bigram.readDictionary(bits);
+				ok = (dictionary != null && Bigram.readTable(bits, dictionary) != null);
+				break;
+
+			case BlockWriter.ORDER1:
+				ok = (Order1.readTables(bits) != null);
+				break;
+
+			case BlockWriter.LZ:
+				ok = (Lz.readTables(bits) != null);
+				break;
+
+			case BlockWriter.BWT:
+				ok = (Bwt.readPrimary(bits, rawLength) >= 0 && Bwt.readTable(bits) != null);
+				break;
+
+			case BlockWriter.RLE:
+				ok = (RunLength.readTables(bits) != null);
+				break;
+
+			default:
+				fail("unknown block type " + type);
+				return null;
+		}
+
+		if (!ok || bits.position() > (long)prefix * 8) {
+			fail("bad tables in block of type " + type);
+			return null;
+		}
+		return new Header(type, rawLength, packedLength, bits.position(), table);
+	}
+
+
+	/**
+	 * What skip() found out about a block.
+	 **/
+	public static class Header {
+		public final int type;			//Block type, see BlockWriter
+		public final long raw;			//Original length
+		public final long packed;		//Length of the payload
+		public final long tableBits;	//Tables at the start of the payload
+		public final CodeTable table;	//Byte codes of HUFFMAN, REPEAT and DELTA
+										//blocks, NULL for other types
+
+		Header(int type, long raw, long packed, long tableBits, CodeTable table) {
+			this.type = type;
+			this.raw = raw;
+			this.packed = packed;
+			this.tableBits = tableBits;
+			this.table = table;
+		}
+	}
+
+
+	/**
+	 * Decodes every remaining block into a stream.
+	 *
+	 * @return	False if a block was corrupt
+	 **/
+	public boolean readAll(OutputStream out) throws IOException {
+		byte[] raw;
+		while ((raw = read()) != null) {
+			out.write(raw);
+		}
+		return !corrupt;
+	}
+
+
+	/**
+	 * True if the last read() stopped on a corrupt block.
+	 **/
+	public boolean isCorrupt() {
+		return corrupt;
+	}
+
+
+	private byte[] fail(String reason) {
+		System.out.println("Block corrupt: " + reason);
+		corrupt = true;
+		return null;
+	}
+}
@@ -0,0 +1,152 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class BlockSplitter {
+	public static final int WINDOW = 16 * 1024;		//Smallest unit of a block
+	private static final double TABLE_BITS = 256 * 5;	//Header of a new block
+
+
+	/**
+	 * Chooses block boundaries for a region of data.
+	 *
+	 * The region is cut into windows and each window's byte histogram is
+	 * counted, in parallel when a pool is given. Windows are then added to
+	 * the current block one by one. A new block starts when coding the
+	 * window on its own, table included, is estimated to cost less than
+	 * coding it with the current block's statistics. So a change from text
+	 * to binary or to padding gets its own block, while steady data stays
+	 * in one block up to BlockWriter.BLOCK_SIZE.
+	 *
+	 * Costs are order-0 entropy estimates, the same for every block type.
+	 *
+	 * @param	data	Source
+	 * @param	offset	Start of the region
+	 * @param	length	Length of the region
+	 * @param	pool	Threads for counting, or NULL to count here
+	 * @return	Lengths of the blocks, in order, adding up to length
+	 **/
+	public static int[] split(byte[] data, int offset, int length, ExecutorService pool) {
+		int windows = (length + WINDOW - 1) / WINDOW;
+		long[][] counts = count(data, offset, length, windows, pool);
+
+		List<Integer> blocks = new ArrayList<>();
+		long[] current = new long[256];
+		double currentBits = 0;
+		int blockLength = 0;
+
+		for (int w = 0; w < windows; w++) {
+			int size = Math.min(WINDOW, length - w * WINDOW);
+
+			if (blockLength > 0) {
+				double windowBits = cost(counts[w], null);
+				double mergedBits = cost(current, counts[w]);
+				boolean full = blockLength + size > BlockWriter.BLOCK_SIZE;
+
+				if (full || windowBits + TABLE_BITS < mergedBits - currentBits) {
+					blocks.add(blockLength);
+					Arrays.fill(current, 0);
+					currentBits = 0;
+					blockLength = 0;
+				}
+			}
+
+			for (int s = 0; s < 256; s++) {
+				current[s] += counts[w][s];
+			}
+			currentBits = cost(current, null);
+			blockLength += size;
+		}
+		if (blockLength > 0) {
+			blocks.add(blockLength);
+		}
+
+		int[] lengths = new int[blocks.size()];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = blocks.get(i);
+		}
+		return lengths;
+	}
+
+
+	/**
+	 * Byte histogram of every window.
+	 **/
+	private static long[][] count(byte[] data, int offset, int length, int windows,
+			ExecutorService pool) {
+		long[][] counts = new long[windows][];
+
+		if (pool == null) {
+			Histogram h = new Histogram();
+			for (int w = 0; w < windows; w++) {
+				counts[w] = window(h, data, offset, length, w);
+			}
+			return counts;
+		}
+
+		/*
+		 * One task per run of windows, a few per thread
+		 */
+		int per = Math.max(1, windows / 16);
+		List<Future<?>> tasks = new ArrayList<>();
+		for (int first = 0; first < windows; first += per) {
+			int from = first;
+			int to = Math.min(windows, first + per);
+			tasks.add(pool.submit(() -> {
+				Histogram h = new Histogram();
+				for (int w = from; w < to; w++) {
+					counts[w] = window(h, data, offset, length, w);
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> t : tasks) {
+				t.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			//Count whatever is missing here instead
+			Histogram h = new Histogram();
+			for (int w = 0; w < windows; w++) {
+				if (counts[w] == null) {
+					counts[w] = window(h, data, offset, length, w);
+				}
+			}
+		}
+
+		return counts;
+	}
+
+
+	private static long[] window(Histogram h, byte[] data, int offset, int length, int w) {
+		int start = w * WINDOW;
+		h.clear();
+		h.add(data, offset + start, Math.min(WINDOW, length - start));
+		return h.counts().clone();
+	}
+
+
+	/**
+	 * Ideal size in bits of coding the given counts, or two sets of counts
+	 * together when b is not NULL.
+	 **/
+	private static double cost(long[] a, long[] b) {
+		long total = 0;
+		for (int s = 0; s < 256; s++) {
+			total += a[s] + ((b == null) ? 0 : b[s]);
+		}
+
+		double bits = 0;
+		for (int s = 0; s < 256; s++) {
+			long n = a[s] + ((b == null) ? 0 : b[s]);
+			if (n > 0) {
+				bits += n * Math.log((double)total / n);
+			}
+		}
+
+		return bits / Math.log(2);
+	}
+}
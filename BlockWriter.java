@@ -0,0 +1,547 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BlockWriter {
+	public static final int MAGIC = 0x30313142;	//"011B", a file of blocks
+
+	public static final int STORED = 0;			//Raw bytes
+	public static final int HUFFMAN = 1;		//Own table, then codes
+	public static final int BIGRAM = 2;			//Bytes and byte pairs, see Bigram
+	public static final int ORDER1 = 3;			//Table per previous byte, see Order1
+	public static final int LZ = 4;				//Literals and matches, see Lz
+	public static final int BWT = 5;			//Block-sorted, see Bwt
+	public static final int RLE = 6;			//Byte and run length, see RunLength
+	public static final int REPEAT = 7;			//Codes only, previous Huffman table
+	public static final int DELTA = 8;			//Changes to previous table, then codes
+	public static final int END = 0xFF;			//No more blocks
+
+	public static final int BLOCK_SIZE = 1 << 20;	//Most bytes per block
+	private static final int REGION_SIZE = 8 * BLOCK_SIZE;	//Bytes split at once
+
+	private OutputStream out;		//Where finished blocks go
+	private BitWriter packed;		//Scratch for the block being built
+	private BitWriter spare;		//Scratch for a second candidate
+	private Histogram histogram;	//Scratch for counting
+	private long written;			//Bytes sent to out so far
+	private int mode;				//Block type to try before HUFFMAN
+	private Bigram bigram;			//Coder for BIGRAM blocks
+	private Order1 order1;			//Coder for ORDER1 blocks
+	private Lz[] lz;				//Coders for LZ blocks, by level
+	private int level;				//Effort for LZ blocks
+	private CodeTable previous;		//Last Huffman table the reader has seen
+	private PairTable pairs;		//Joint codes for long Huffman blocks
+	private EffortControl effort;	//Picks mode and level per block, if set
+	private byte[] region;			//Scratch for writeAll, kept between calls
+	private CodeTable fresh;		//Huffman table code() built for its region
+
+
+	/**
+	 * Creates a writer of blocks. Each block carries its own tables, except
+	 * that a Huffman block may reuse or amend the table of the Huffman
+	 * block before it (see writeHuffman()).
+	 *
+	 * A block is laid out as:
+	 * 			type   raw length   packed length   packed bytes
+	 * where both lengths are varints. The packed length lets a reader skip
+	 * or fetch a block without decoding it.
+	 *
+	 * @param	out		Destination of the blocks
+	 **/
+	public BlockWriter(OutputStream out) {
+		this(out, HUFFMAN);
+	}
+
+
+	/**
+	 * Creates a writer that tries a particular kind of block first. Each
+	 * block still falls back to HUFFMAN or STORED, whichever is smallest.
+	 *
+	 * @param	out		Destination of the blocks
+	 * @param	mode	Block type to try, e.g. BIGRAM
+	 **/
+	public BlockWriter(OutputStream out, int mode) {
+		this(out, mode, Lz.DEFAULT_LEVEL);
+	}
+
+
+	/**
+	 * Creates a writer that tries a particular kind of block first, at the
+	 * given effort. Only LZ blocks use the level.
+	 *
+	 * @param	out		Destination of the blocks
+	 * @param	mode	Block type to try, e.g. LZ
+	 * @param	level	Effort, 1 to Lz.MAX_LEVEL
+	 **/
+	public BlockWriter(OutputStream out, int mode, int level) {
+		this.out = out;
+		this.mode = mode;
+		this.level = level;
+		packed = new BitWriter(1 << 16);
+		spare = new BitWriter(1 << 16);
+		histogram = new Histogram();
+		written = 0;
+		lz = new Lz[Lz.MAX_LEVEL + 1];
+		effort = null;
+		pairs = new PairTable();
+	}
+
+
+	/**
+	 * Changes the block type tried first, and the LZ effort, for the
+	 * blocks written from now on.
+	 **/
+	public void setMode(int mode, int level) {
+		this.mode = mode;
+		this.level = level;
+	}
+
+
+	/**
+	 * Lets a controller choose the mode and level of every block written
+	 * with write() from now on, and measure how long each one takes.
+	 **/
+	public void setEffort(EffortControl effort) {
+		this.effort = effort;
+	}
+
+
+	/**
+	 * Maps a mode name from the command line to a block type.
+	 *
+	 * @return	The block type, or -1 if the name is unknown
+	 **/
+	public static int parseMode(String name) {
+		switch (name) {
+			case "stored":	return STORED;
+			case "huffman":	return HUFFMAN;
+			case "bigram":	return BIGRAM;
+			case "order1":	return ORDER1;
+			case "lz":		return LZ;
+			case "bwt":		return BWT;
+			default:		return -1;
+		}
+	}
+
+
+	/**
+	 * Codes a region as one block. The writer's mode is tried first, and
+	 * the block falls back to Huffman coding, or to storing it raw, when
+	 * that would be smaller. A region with long runs also tries an RLE
+	 * block, in any mode but STORED.
+	 **/
+	public void write(byte[] src, int offset, int length) throws IOException {
+		long start = System.nanoTime();
+		int choice = 0;
+		if (effort != null) {
+			choice = effort.choose();
+			setMode(effort.getMode(choice), effort.getLevel(choice));
+		}
+
+		int type = code(src, offset, length);
+		if (type == HUFFMAN) {
+			writeHuffman(src, offset, length, histogram.counts(), fresh, null, 0);
+		} else {
+			emit(type, length);
+		}
+
+		if (effort != null) {
+			effort.record(choice, length, System.nanoTime() - start);
+		}
+	}
+
+
+	/**
+	 * Codes a region into the scratch writer as whichever block type is
+	 * smallest, except that plain Huffman blocks are left to
+	 * writeHuffman(): their table depends on the blocks before, so they
+	 * must be coded in stream order.
+	 *
+	 * @return	The type of the block in the scratch writer, or HUFFMAN if
+	 * 			there is none and writeHuffman() should be used
+	 **/
+	private int code(byte[] src, int offset, int length) {
+		if (mode == STORED) {
+			packed.reset();
+			packed.writeBytes(src, offset, length);
+			return STORED;
+		}
+
+		histogram.clear();
+		histogram.add(src, offset, length);
+		long[] counts = histogram.counts();
+		CodeTable table = CodeTable.fromCounts(counts);
+		fresh = table;
+
+		/*
+		 * Size of the Huffman block: table plus every code
+		 */
+		long bits = 256 * 5;
+		for (int i = 0; i < 256; i++) {
+			bits += counts[i] * table.getLength(i);
+		}
+		long best = Math.min(bits, (long)length * 8);
+
+		int chosen = -1;
+		packed.reset();
+		if (tryMode(src, offset, length) && packed.bitLength() < best) {
+			best = packed.bitLength();
+			chosen = mode;
+		}
+
+		if (RunLength.worthTrying(src, offset, length)) {
+			spare.reset();
+			RunLength.encode(src, offset, length, spare);
+			if (spare.bitLength() < best) {
+				BitWriter swap = packed;
+				packed = spare;
+				spare = swap;
+				chosen = RLE;
+			}
+		}
+
+		if (chosen >= 0) {
+			return chosen;
+		}
+		if ((bits + 7) / 8 < length) {
+			return HUFFMAN;
+		}
+
+		packed.reset();
+		packed.writeBytes(src, offset, length);
+		return STORED;
+	}
+
+
+	/**
+	 * Huffman codes a region as one block, choosing the cheapest table:
+	 * the previous block's table again (REPEAT, no table bytes at all), a
+	 * list of code lengths that changed from it (DELTA), or a full table
+	 * (HUFFMAN). On steady data most blocks are repeats, and the reader
+	 * keeps its decoding tables for them.
+	 *
+	 * A DELTA block starts with a varint number of changes, each an 8-bit
+	 * symbol and its new 5-bit length.
+	 *
+	 * The counts and fresh table are the ones code() built. The codes under
+	 * the fresh table may have been packed already on a coding thread, and
+	 * are used whenever the chosen table has the same lengths.
+	 *
+	 * @param	counts		Symbol counts of the region
+	 * @param	fresh		Table built from the counts
+	 * @param	body		Codes of the region under fresh, or NULL
+	 * @param	bodyBits	Length of body in bits
+	 **/
+	private void writeHuffman(byte[] src, int offset, int length, long[] counts,
+			CodeTable fresh, byte[] body, long bodyBits) throws IOException {
+		long freshBody = bodyBits(fresh, counts);
+		long best = 256 * 5 + freshBody;
+		int type = HUFFMAN;
+		int changes = 0;
+
+		if (previous != null) {
+			long repeat = bodyBits(previous, counts);
+			for (int s = 0; s < 256; s++) {
+				if (fresh.getLength(s) != previous.getLength(s)) {
+					changes++;
+				}
+			}
+			long delta = 8L * Varint.size(changes) + 13L * changes + freshBody;
+
+			if (repeat >= 0 && repeat <= delta && repeat < best) {
+				best = repeat;
+				type = REPEAT;
+			} else if (delta < best) {
+				best = delta;
+				type = DELTA;
+			}
+		}
+
+		packed.reset();
+		if ((best + 7) / 8 >= length) {
+			packed.writeBytes(src, offset, length);
+			emit(STORED, length);
+			return;
+		}
+
+		CodeTable table = fresh;
+		if (type == REPEAT) {
+			table = previous;
+		} else if (type == DELTA) {
+			Varint.write(packed, changes);
+			for (int s = 0; s < 256; s++) {
+				if (fresh.getLength(s) != previous.getLength(s)) {
+					packed.writeBits(s, 8);
+					packed.writeBits(fresh.getLength(s), 5);
+				}
+			}
+		} else {
+			fresh.write(packed);
+		}
+
+		if (body != null && (type != REPEAT || changes == 0)) {
+			packed.writeBits(body, bodyBits);
+		} else {
+			encodeCodes(packed, table, src, offset, length);
+		}
+		previous = table;
+		emit(type, length);
+	}
+
+
+	/**
+	 * Packs the codes of a region under a table.
+	 **/
+	private void encodeCodes(BitWriter into, CodeTable table, byte[] src,
+			int offset, int length) {
+		//Pairs pay for their build on long blocks, or once already built
+		if (length >= PairTable.MIN_LENGTH || pairs.matches(table)) {
+			pairs.update(table);
+			pairs.encode(into, src, offset, length);
+		} else {
+			for (int i = offset; i < offset + length; i++) {
+				table.encode(into, src[i] & 0xFF);
+			}
+		}
+	}
+
+
+	/**
+	 * Packs a region that code() left to writeHuffman() as far as it can
+	 * be without knowing the blocks before it: its counts, its own table,
+	 * and its codes under that table.
+	 **/
+	private Coded prepareHuffman(byte[] src) {
+		spare.reset();
+		encodeCodes(spare, fresh, src, 0, src.length);
+		long bits = spare.bitLength();
+		return new Coded(null, histogram.counts().clone(), fresh, spare.toByteArray(), bits);
+	}
+
+
+	/**
+	 * Bits needed for the codes of a block under a table.
+	 *
+	 * @return	The size, or -1 if the table lacks a symbol that occurs
+	 **/
+	private static long bodyBits(CodeTable table, long[] counts) {
+		long bits = 0;
+		for (int s = 0; s < 256; s++) {
+			if (counts[s] > 0) {
+				if (table.getLength(s) == 0) {
+					return -1;
+				}
+				bits += counts[s] * table.getLength(s);
+			}
+		}
+		return bits;
+	}
+
+
+	/**
+	 * Codes a region into the scratch writer as a block of the writer's
+	 * mode, for modes that differ from plain HUFFMAN.
+	 *
+	 * @return	False if the mode doesn't apply to this region
+	 **/
+	private boolean tryMode(byte[] src, int offset, int length) {
+		switch (mode) {
+			case BIGRAM:
+				if (bigram == null) {
+					bigram = new Bigram();
+				}
+				return bigram.encode(src, offset, length, packed);
+
+			case ORDER1:
+				if (order1 == null) {
+					order1 = new Order1();
+				}
+				order1.encode(src, offset, length, packed);
+				return true;
+
+			case LZ:
+				int l = Math.max(1, Math.min(level, Lz.MAX_LEVEL));
+				if (lz[l] == null) {
+					lz[l] = new Lz(l);
+				}
+				lz[l].encode(src, offset, length, packed);
+				return true;
+
+			case BWT:
+				Bwt.encode(src, offset, length, packed);
+				return true;
+
+			default:
+				return false;
+		}
+	}
+
+
+	/**
+	 * Sends a block whose payload has been built in the scratch writer.
+	 **/
+	private void emit(int type, int length) throws IOException {
+		packed.align();
+		out.write(type);
+		Varint.write(out, length);
+		Varint.write(out, packed.size());
+		out.write(packed.array(), 0, packed.size());
+		written += 1 + Varint.size(length) + Varint.size(packed.size()) + packed.size();
+	}
+
+
+	/**
+	 * Reads a whole stream and writes it as blocks, with boundaries chosen
+	 * by BlockSplitter.
+	 *
+	 * @return	Number of source bytes consumed
+	 **/
+	public long writeAll(InputStream in) throws IOException {
+		return writeAll(in, 1);
+	}
+
+
+	/**
+	 * Reads a whole stream and writes it as blocks, coding several blocks
+	 * at once. The stream is read a region at a time, and BlockSplitter
+	 * cuts each region into blocks where the statistics change.
+	 *
+	 * Each thread codes whole blocks with its own writer, and the results
+	 * are sent in order. Plain Huffman blocks are the exception: they may
+	 * reuse the previous block's table, so only the choice of table is
+	 * left until they are sent. The thread builds the block's own table
+	 * and packs its codes, which are used unless the previous table wins
+	 * with different lengths. The output is the same for any number of
+	 * threads.
+	 *
+	 * With an EffortControl set, blocks are coded on this thread only, so
+	 * the time measured for each block is its own.
+	 *
+	 * @param	threads	Number of coding threads
+	 * @return	Number of source bytes consumed
+	 **/
+	public long writeAll(InputStream in, int threads) throws IOException {
+		ExecutorService pool = (threads > 1 && effort == null)
+			? Executors.newFixedThreadPool(threads) : null;
+		ThreadLocal<ByteArrayOutputStream> buffers = ThreadLocal.withInitial(
+			() -> new ByteArrayOutputStream(BLOCK_SIZE + 64));
+		ThreadLocal<BlockWriter> writers = ThreadLocal.withInitial(
+			() -> new BlockWriter(buffers.get(), mode, level));
+
+		if (region == null) {
+			region = new byte[REGION_SIZE];
+		}
+		List<Future<Coded>> pending = new ArrayList<>();
+		List<byte[]> sources = new ArrayList<>();
+		long total = 0;
+		int n;
+
+		try {
+			while ((n = in.readNBytes(region, 0, region.length)) > 0) {
+				int start = 0;
+				for (int length : BlockSplitter.split(region, 0, n, pool)) {
+					if (pool == null) {
+						write(region, start, length);
+						start += length;
+						continue;
+					}
+
+					byte[] chunk = Arrays.copyOfRange(region, start, start + length);
+					start += length;
+					sources.add(chunk);
+					pending.add(pool.submit(() -> {
+						ByteArrayOutputStream buffer = buffers.get();
+						BlockWriter writer = writers.get();
+						int type = writer.code(chunk, 0, chunk.length);
+						if (type == HUFFMAN) {
+							return writer.prepareHuffman(chunk);
+						}
+						buffer.reset();
+						writer.emit(type, chunk.length);
+						return new Coded(buffer.toByteArray(), null, null, null, 0);
+					}));
+
+					//Keep a bounded number of blocks in flight
+					while (pending.size() >= threads * 2) {
+						sendPending(pending, sources);
+					}
+				}
+				total += n;
+			}
+
+			while (!pending.isEmpty()) {
+				sendPending(pending, sources);
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException("block coding failed: " + e.getMessage(), e);
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+
+		return total;
+	}
+
+
+	/**
+	 * Waits for the oldest block coded in parallel and sends it. A block
+	 * to be Huffman coded gets its table chosen here, in stream order.
+	 **/
+	private void sendPending(List<Future<Coded>> pending, List<byte[]> sources)
+			throws IOException, InterruptedException, ExecutionException {
+		Coded coded = pending.remove(0).get();
+		byte[] source = sources.remove(0);
+		if (coded.block == null) {
+			writeHuffman(source, 0, source.length, coded.counts, coded.fresh,
+				coded.body, coded.bodyBits);
+		} else {
+			out.write(coded.block);
+			written += coded.block.length;
+		}
+	}
+
+
+	/**
+	 * A block coded on another thread: either finished, or left for
+	 * writeHuffman() with what it needs.
+	 **/
+	private static class Coded {
+		final byte[] block;		//Finished block, or NULL to Huffman code
+		final long[] counts;	//Symbol counts of the region
+		final CodeTable fresh;	//Table built from the counts
+		final byte[] body;		//Codes under fresh
+		final long bodyBits;	//Length of body in bits
+
+		Coded(byte[] block, long[] counts, CodeTable fresh, byte[] body, long bodyBits) {
+			this.block = block;
+			this.counts = counts;
+			this.fresh = fresh;
+			this.body = body;
+			this.bodyBits = bodyBits;
+		}
+	}
+
+
+	/**
+	 * Marks the end of the blocks. Nothing should be written after this.
+	 **/
+	public void finish() throws IOException {
+		out.write(END);
+		out.flush();
+		written++;
+	}
+
+
+	/**
+	 * Number of bytes written to the stream so far.
+	 **/
+	public long getWritten() {
+		return written;
+	}
+}
@@ -0,0 +1,71 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class BufferPool {
+	private static final int MIN_SHIFT = 12;	//Smallest class, 4 KiB
+	private static final int MAX_SHIFT = 22;	//Largest class, 4 MiB
+	private static final int KEEP = 32;			//Buffers kept per class
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static final ConcurrentLinkedQueue<ByteBuffer>[] free =
+		new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+
+	static {
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new ConcurrentLinkedQueue<>();
+		}
+	}
+
+
+	/**
+	 * Hands out a cleared direct buffer of at least the requested size.
+	 * Sizes are rounded up to a power of two, and buffers given back with
+	 * release() are reused, so a steady stream of files allocates no new
+	 * buffers once the pool is warm.
+	 *
+	 * Requests above the largest class get an unpooled buffer.
+	 *
+	 * @param	size	Minimum capacity in bytes
+	 * @return	A direct buffer, position 0, limit at capacity
+	 **/
+	public static ByteBuffer acquire(int size) {
+		int shift = classOf(size);
+		if (shift > MAX_SHIFT) {
+			return ByteBuffer.allocateDirect(size);
+		}
+
+		ByteBuffer buf = free[shift - MIN_SHIFT].poll();
+		if (buf == null) {
+			buf = ByteBuffer.allocateDirect(1 << shift);
+		}
+		buf.clear();
+		return buf;
+	}
+
+
+	/**
+	 * Gives a buffer back to the pool. The caller must not touch it again.
+	 **/
+	public static void release(ByteBuffer buf) {
+		if (buf == null || !buf.isDirect()) {
+			return;
+		}
+
+		int shift = classOf(buf.capacity());
+		if (shift <= MAX_SHIFT && buf.capacity() == 1 << shift) {
+			ConcurrentLinkedQueue<ByteBuffer> queue = free[shift - MIN_SHIFT];
+			if (queue.size() < KEEP) {
+				queue.offer(buf);
+			}
+		}
+	}
+
+
+	/**
+	 * Smallest power of two, no less than the minimum class, holding size.
+	 **/
+	private static int classOf(int size) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		return Math.max(shift, MIN_SHIFT);
+	}
+}
@@ -0,0 +1,390 @@
+import java.util.Arrays;
+
+public class Bwt {
+	private static final int RUN_A = 0;		//Run digits, see encode()
+	private static final int RUN_B = 1;
+	private static final int SYMBOLS = 257;	//Two run digits, MTF ranks 1..255
+
+
+	/**
+	 * Encodes a region as a block-sorted block:
+	 * 			primary index   code lengths   codes
+	 *
+	 * The region goes through the Burrows-Wheeler transform, which groups
+	 * bytes by what follows them, then move-to-front, which turns those
+	 * groups into mostly small numbers and long runs of zero. Zero runs are
+	 * written as their length in bijective base 2 with the digits RUN_A
+	 * and RUN_B (as in bzip2); any other rank r is written as r + 1.
+	 *
+	 * The primary index is the row of the sorted rotations that holds the
+	 * end-of-block marker, which the transform needs to be undone.
+	 **/
+	public static void encode(byte[] src, int offset, int length, BitWriter out) {
+		int n = length;
+
+		/*
+		 * Suffix array of the bytes plus a smallest end marker. Each suffix
+		 * is preceded by one byte, which is the transform's output.
+		 */
+		int[] text = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			text[i] = (src[offset + i] & 0xFF) + 1;
+		}
+		int[] sa = suffixArray(text, SYMBOLS);
+
+		byte[] last = new byte[n];
+		int primary = 0;
+		int k = 0;
+		for (int i = 0; i <= n; i++) {
+			if (sa[i] == 0) {
+				primary = i;
+			} else {
+				last[k++] = src[offset + sa[i] - 1];
+			}
+		}
+		text = null;
+		sa = null;
+
+		/*
+		 * Move-to-front and zero runs
+		 */
+		int[] symbols = new int[n];
+		long[] counts = new long[SYMBOLS];
+		byte[] order = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			order[i] = (byte)i;
+		}
+
+		int count = 0;
+		int run = 0;
+		for (int i = 0; i < n; i++) {
+			byte b = last[i];
+			if (order[0] == b) {
+				run++;
+				continue;
+			}
+			count = writeRun(symbols, counts, count, run);
+			run = 0;
+
+			int rank = 1;
+			while (order[rank] != b) {
+				rank++;
+			}
+			System.arraycopy(order, 0, order, 1, rank);
+			order[0] = b;
+
+			symbols[count++] = rank + 1;
+			counts[rank + 1]++;
+		}
+		count = writeRun(symbols, counts, count, run);
+
+		CodeTable table = CodeTable.fromCounts(counts);
+		Varint.write(out, primary);
+		table.write(out);
+		for (int i = 0; i < count; i++) {
+			table.encode(out, symbols[i]);
+		}
+	}
+
+
+	/**
+	 * Appends the digits of a zero run, least significant first.
+	 *
+	 * @return	The new number of symbols
+	 **/
+	private static int writeRun(int[] symbols, long[] counts, int count, int run) {
+		while (run > 0) {
+			int digit = ((run & 1) == 1) ? RUN_A : RUN_B;
+			symbols[count++] = digit;
+			counts[digit]++;
+			run = (run - 1) >> 1;
+		}
+		return count;
+	}
+
+
+	/**
+	 * Reads the index of the original row at the start of a block-sorted
+	 * block.
+	 *
+	 * @param	n	Length of the block
+	 * @return	The index, or -1 if it is out of range
+	 **/
+	public static long readPrimary(BitReader in, long n) {
+		long primary = Varint.read(in);
+		return (primary < 0 || primary > n) ? -1 : primary;
+	}
+
+
+	/**
+	 * Reads the table that follows the primary index.
+	 *
+	 * @return	The table, or NULL if it is corrupt
+	 **/
+	public static CodeTable readTable(BitReader in) {
+		return CodeTable.read(in, SYMBOLS);
+	}
+
+
+	/**
+	 * Decodes a block-sorted block into raw.
+	 *
+	 * @return	False if the block is corrupt
+	 **/
+	public static boolean decode(BitReader in, byte[] raw) {
+		int n = raw.length;
+		long primary = readPrimary(in, n);
+		if (primary < 0) {
+			return false;
+		}
+		CodeTable table = readTable(in);
+		if (table == null) {
+			return false;
+		}
+
+		/*
+		 * Undo the zero runs and move-to-front. Runs are filled in whole.
+		 */
+		byte[] last = new byte[n];
+		byte[] order = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			order[i] = (byte)i;
+		}
+
+		int produced = 0;
+		int run = 0;
+		int weight = 1;
+		while (produced + run < n) {
+			int symbol = table.decode(in);
+			if (symbol < 0) {
+				return false;
+			}
+
+			if (symbol == RUN_A || symbol == RUN_B) {
+				run += (symbol + 1) * weight;
+				weight <<= 1;
+				if (run > n - produced) {
+					return false;
+				}
+				continue;
+			}
+
+			Arrays.fill(last, produced, produced + run, order[0]);
+			produced += run;
+			run = 0;
+			weight = 1;
+			if (produced == n) {
+				return false;
+			}
+
+			int rank = symbol - 1;
+			byte b = order[rank];
+			System.arraycopy(order, 0, order, 1, rank);
+			order[0] = b;
+			last[produced++] = b;
+		}
+		Arrays.fill(last, produced, produced + run, order[0]);
+
+		/*
+		 * Undo the transform. Row r of the sorted rotations is followed,
+		 * in the text, by row next[r]; row 0 starts with the end marker,
+		 * so walking from it yields the text backwards.
+		 */
+		int[] start = new int[256];
+		for (int i = 0; i < n; i++) {
+			start[last[i] & 0xFF]++;
+		}
+		int sum = 1;
+		for (int c = 0; c < 256; c++) {
+			int t = start[c];
+			start[c] = sum;
+			sum += t;
+		}
+
+		int[] next = new int[n + 1];
+		for (int r = 0, i = 0; r <= n; r++) {
+			if (r != primary) {
+				next[r] = start[last[i++] & 0xFF]++;
+			}
+		}
+
+		int r = 0;
+		for (int k = n - 1; k >= 0; k--) {
+			if (r == primary) {
+				return false;
+			}
+			int i = (r < primary) ? r : r - 1;
+			raw[k] = last[i];
+			r = next[r];
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Builds the suffix array of text with SA-IS, in linear time.
+	 *
+	 * @param	text	Symbols below alphabet, the last one a 0 that occurs
+	 * 					nowhere else
+	 * @param	alphabet	Number of distinct symbol values
+	 * @return	Start of every suffix, in sorted order
+	 **/
+	static int[] suffixArray(int[] text, int alphabet) {
+		int n = text.length;
+		int[] sa = new int[n];
+		if (n == 1) {
+			return sa;
+		}
+
+		/*
+		 * A suffix is S-type if it sorts before the one after it. An LMS
+		 * suffix is an S-type suffix right after an L-type one.
+		 */
+		boolean[] stype = new boolean[n];
+		stype[n - 1] = true;
+		for (int i = n - 2; i >= 0; i--) {
+			stype[i] = text[i] < text[i + 1]
+				|| (text[i] == text[i + 1] && stype[i + 1]);
+		}
+
+		int[] bucket = new int[alphabet];
+		for (int i = 0; i < n; i++) {
+			bucket[text[i]]++;
+		}
+
+		/*
+		 * Sort the LMS substrings by induction from their bucket ends
+		 */
+		Arrays.fill(sa, -1);
+		int[] end = bucketEnds(bucket);
+		for (int i = 1; i < n; i++) {
+			if (isLms(stype, i)) {
+				sa[--end[text[i]]] = i;
+			}
+		}
+		induce(text, sa, stype, bucket);
+
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			if (isLms(stype, sa[i])) {
+				sa[m++] = sa[i];
+			}
+		}
+
+		/*
+		 * Name them; equal substrings share a name
+		 */
+		Arrays.fill(sa, m, n, -1);
+		int names = 0;
+		int prev = -1;
+		for (int i = 0; i < m; i++) {
+			int pos = sa[i];
+			if (prev < 0 || !sameLms(text, stype, prev, pos)) {
+				names++;
+				prev = pos;
+			}
+			sa[m + pos / 2] = names - 1;
+		}
+		for (int i = n - 1, j = n - 1; i >= m; i--) {
+			if (sa[i] >= 0) {
+				sa[j--] = sa[i];
+			}
+		}
+
+		/*
+		 * Sort the LMS suffixes: directly if the names are all different,
+		 * otherwise by sorting the string of names
+		 */
+		int[] reduced = Arrays.copyOfRange(sa, n - m, n);
+		int[] order;
+		if (names < m) {
+			order = suffixArray(reduced, names);
+		} else {
+			order = new int[m];
+			for (int i = 0; i < m; i++) {
+				order[reduced[i]] = i;
+			}
+		}
+
+		int[] lms = new int[m];
+		for (int i = 1, j = 0; i < n; i++) {
+			if (isLms(stype, i)) {
+				lms[j++] = i;
+			}
+		}
+
+		/*
+		 * Induce the full order from the sorted LMS suffixes
+		 */
+		Arrays.fill(sa, -1);
+		end = bucketEnds(bucket);
+		for (int i = m - 1; i >= 0; i--) {
+			int pos = lms[order[i]];
+			sa[--end[text[pos]]] = pos;
+		}
+		induce(text, sa, stype, bucket);
+
+		return sa;
+	}
+
+
+	private static boolean isLms(boolean[] stype, int i) {
+		return i > 0 && stype[i] && !stype[i - 1];
+	}
+
+
+	/**
+	 * Check if the LMS substrings starting at a and b are identical.
+	 **/
+	private static boolean sameLms(int[] text, boolean[] stype, int a, int b) {
+		for (int d = 0; ; d++) {
+			if (text[a + d] != text[b + d] || stype[a + d] != stype[b + d]) {
+				return false;
+			}
+			if (d > 0 && (isLms(stype, a + d) || isLms(stype, b + d))) {
+				return isLms(stype, a + d) && isLms(stype, b + d);
+			}
+		}
+	}
+
+
+	private static int[] bucketEnds(int[] bucket) {
+		int[] end = new int[bucket.length];
+		int sum = 0;
+		for (int c = 0; c < bucket.length; c++) {
+			sum += bucket[c];
+			end[c] = sum;
+		}
+		return end;
+	}
+
+
+	/**
+	 * Places L-type suffixes left to right, then S-type right to left,
+	 * each just after or before a suffix already in place.
+	 **/
+	private static void induce(int[] text, int[] sa, boolean[] stype, int[] bucket) {
+		int n = text.length;
+
+		int[] start = new int[bucket.length];
+		for (int c = 0, sum = 0; c < bucket.length; c++) {
+			start[c] = sum;
+			sum += bucket[c];
+		}
+		for (int i = 0; i < n; i++) {
+			int j = sa[i] - 1;
+			if (j >= 0 && !stype[j]) {
+				sa[start[text[j]]++] = j;
+			}
+		}
+
+		int[] end = bucketEnds(bucket);
+		for (int i = n - 1; i >= 0; i--) {
+			int j = sa[i] - 1;
+			if (j >= 0 && stype[j]) {
+				sa[--end[text[j]]] = j;
+			}
+		}
+	}
+}
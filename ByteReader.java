@@ -1,31 +1,43 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class ByteReader {
+	private static final int BUFFER_SIZE = 1 << 16;
+
 	private byte cursor;				//Bit pointed to in current byte
-	private String buffer;				//Stores most recently read byte
-	private DataInputStream data;		//Loads compressed file
+	private int current;				//Most recently read byte, -1 if none
+	private FileChannel data;			//Loads compressed file
+	private ByteBuffer in;				//Pooled read-ahead from the file
 	private long filesize;				//Size of loaded file
 	private long bytesread;				//Number of bytes that have been read
 	private String file;				//Name of the file loaded
+	private boolean readFailure;		//Set when reading the file failed
 
 
 	/**
 	 * Creates a new ByteReader object that processes the passed file. 
 	 * If the file cannot be opened, data will be set to NULL.
 	 *
+	 * The file is read through a direct buffer borrowed from BufferPool,
+	 * which is returned by close().
+	 *
 	 * @param	file	The file to be opened
 	 **/
 	public ByteReader(String filename) {
 		file = filename;
 		filesize = bytesread = cursor = 0;
-		buffer = "";
+		current = -1;
 		data = null;
+		in = null;
+		readFailure = false;
 
 		//Attempt to load file for processing
 		try {
-			FileInputStream fin = new FileInputStream(file);
-			filesize = fin.getChannel().size();
-			data = new DataInputStream(new BufferedInputStream(fin));
+			data = new FileInputStream(file).getChannel();
+			filesize = data.size();
+			in = BufferPool.acquire(BUFFER_SIZE);
+			in.limit(0);
 		} 
 		catch (FileNotFoundException fnfe) {
 			System.out.println("Unable to load file. Check filename.");
@@ -33,6 +45,7 @@ public class ByteReader {
 		} 
 		catch (IOException ioe) {
 			System.out.println("Buggered up while getting file size.");
+			close();
 			data = null;
 		}
 	}
@@ -49,33 +62,42 @@ public class ByteReader {
 
 
 	/**
-	 * Reads the next byte from the encoded file, ensuring it has the proper
-	 * width. Bytes are read without leading zeroes, however all zeroes are
-	 * significant in this encoding, so an appropriate number are prepended.
+	 * Refills the read-ahead buffer from the file.
+	 *
+	 * @return	False if there is nothing left to read
+	 **/
+	private boolean fill() throws IOException {
+		in.clear();
+		int n = data.read(in);
+		in.flip();
+		return n > 0;
+	}
+
+
+	/**
+	 * Reads the next byte from the encoded file.
 	 *
 	 * If a failure occurs when reading a byte, either the header specified
 	 * the wrong length for the code, or the header specified wrong codes.
 	 *
-	 * @return	Stringified binary of byte
+	 * @return	Value of the byte, or -1 past EOF
 	 **/
-	private String readByte() {
-		String in = null;
+	private int readByte() {
 		try {
-			in = Integer.toBinaryString(data.readUnsignedByte());
-			bytesread++;
-
-			//Prepend zeroes to fit byte-width
-			while (in.length() < 8) {
-				in = "0" + in;
+			if (!in.hasRemaining() && !fill()) {
+				System.out.println(
+					"Attempting to read beyond EOF"
+				);
+				return -1;
 			}
+			bytesread++;
+			return in.get() & 0xFF;
 		}
 		catch (IOException ioe) {
-			System.out.println(
-				"Attempting to read beyond EOF"
-			);
+			System.out.println("Failed reading file.");
+			readFailure = true;
+			return -1;
 		}
-
-		return in;
 	}
 
 
@@ -89,27 +111,114 @@ public class ByteReader {
 		StringBuilder bits = new StringBuilder(8);
 
 		for (int i = 0; i < n; i++) {
-			/*
-			 * If the byte has been completely read, fetch a new one, and start
-			 * reading from the MSB
-			 */
-			if (cursor == 0 || cursor == 8) {
-				buffer = readByte();
-				cursor = 0;
-
-				//If something broke...
-				if (buffer == null) {
-					break;
-				}
-			}
+			int bit = nextBit();
 
-			bits.append(buffer.substring(cursor++, cursor));
+			//If something broke...
+			if (bit < 0) {
+				break;
+			}
+			bits.append(bit == 0 ? '0' : '1');
 		}
 		
 		return bits.toString();
 	}
 
 
+	/**
+	 * Retrieves n bits as a number, without building a string.
+	 *
+	 * @param	n	Number of bits, at most 31
+	 * @return	The bits, or -1 if the file ran out
+	 **/
+	public int readBits(int n) {
+		int bits = 0;
+
+		for (int i = 0; i < n; i++) {
+			int bit = nextBit();
+			if (bit < 0) {
+				return -1;
+			}
+			bits = (bits << 1) | bit;
+		}
+
+		return bits;
+	}
+
+
+	/**
+	 * Returns the next bit, or -1 if none is left.
+	 **/
+	private int nextBit() {
+		/*
+		 * If the byte has been completely read, fetch a new one, and start
+		 * reading from the MSB
+		 */
+		if (cursor == 0 || cursor == 8) {
+			current = readByte();
+			cursor = 0;
+
+			if (current < 0) {
+				return -1;
+			}
+		}
+
+		return (current >>> (7 - cursor++)) & 1;
+	}
+
+
+	/**
+	 * Reads whole bytes straight into an array, bypassing the bit buffer.
+	 * Only valid when no byte is partially consumed.
+	 *
+	 * @return	Number of bytes read, or -1 at end of file
+	 **/
+	public int read(byte[] buf, int offset, int length) {
+		try {
+			if (!in.hasRemaining() && !fill()) {
+				return -1;
+			}
+
+			int n = Math.min(length, in.remaining());
+			in.get(buf, offset, n);
+			bytesread += n;
+			cursor = 8;
+			return n;
+		}
+		catch (IOException ioe) {
+			System.out.println("Failed reading file.");
+			readFailure = true;
+			return -1;
+		}
+	}
+
+
+	/**
+	 * Check if a read stopped because of an error rather than the end of
+	 * the file.
+	 **/
+	public boolean readFailure() {
+		return readFailure;
+	}
+
+
+	/**
+	 * Number of bits of the current byte that grabBits() has not yet
+	 * handed out.
+	 **/
+	public int bitsLeftInByte() {
+		return (cursor == 0) ? 0 : 8 - cursor;
+	}
+
+
+	/**
+	 * Number of bytes taken from the file so far, including the one
+	 * grabBits() is partway through.
+	 **/
+	public long getBytesRead() {
+		return bytesread;
+	}
+
+
 	/**
 	 * Returns true if all bytes in file have been read.
 	 *
@@ -122,11 +231,16 @@ public class ByteReader {
 
 
 	/**
-	 * Closes the loaded input file.
+	 * Closes the loaded input file and returns the buffer to the pool.
 	 **/
 	public void close() {
+		BufferPool.release(in);
+		in = null;
+
 		try {
-			data.close();
+			if (data != null) {
+				data.close();
+			}
 		} catch (Exception e) {
 			System.out.println("File broke while closing");
 		}
@@ -134,17 +248,16 @@ public class ByteReader {
 
 
 	/**
-	 * "Resets" the file to the beginning. Actually it just closes and reopens it.
+	 * Resets the file to the beginning.
 	 **/
 	public void reset() {
 		try {
-			data.close();
-
-			FileInputStream fin = new FileInputStream(file);
-			data = new DataInputStream(new BufferedInputStream(fin));
+			data.position(0);
+			in.clear();
+			in.limit(0);
 
 			bytesread = cursor = 0;
-			buffer = "";
+			current = -1;
 		} catch (Exception e) {
 			System.out.println("Something broke while resetting.");
 		}
@@ -1,9 +1,14 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class ByteWriter {
+	private static final int BUFFER_SIZE = 1 << 16;
+
 	private int buffer;					//Byte currently being written
 	private int buffersize;				//Number of bits filled in buffer
-	private DataOutputStream data;		//File to write to
+	private FileChannel data;			//File to write to
+	private ByteBuffer out;				//Pooled bytes waiting for the file
 
 
 	/**
@@ -12,16 +17,21 @@ public class ByteWriter {
 	 * Data will be NULL if the target file could not be created. Check with
 	 * loadFailure() after instantiating a new ByteWriter.
 	 *
+	 * Finished bytes collect in a direct buffer borrowed from BufferPool and
+	 * go to the file with FileChannel.write, so they are never copied back
+	 * onto the heap. close() returns the buffer.
+	 *
 	 * @param	file	The target file
 	 **/
 	public ByteWriter(String file) {
 		buffer = 0;
 		buffersize = 0;
 		data = null;
+		out = null;
 
 		try {
-			FileOutputStream fout = new FileOutputStream(file);
-			data = new DataOutputStream(new BufferedOutputStream(fout));
+			data = new FileOutputStream(file).getChannel();
+			out = BufferPool.acquire(BUFFER_SIZE);
 		} catch (FileNotFoundException fnfe) {
 			System.out.println("Couldn't create output file.");
 		}
@@ -39,19 +49,39 @@ public class ByteWriter {
 			return;
 		}
 
-		/*
-		 * Convert code to 0s and 1s
-		 */
-		char[] bits = code.toCharArray();
-		for (int i = 0; i < bits.length; i++) {
-			bits[i] = (bits[i] == '1') ? (char)1 : (char)0; 
+		for (int i = 0; i < code.length(); i++) {
+			//Flush buffer and reset, if byte is full
+			if (buffersize == 8) {
+				try {
+					put(buffer);
+				} catch (IOException ioe) {
+					System.err.println("Error writing to file.");
+				}
+				buffersize = 0;
+				buffer = 0;
+			}
+
+			//Shift in a new bit
+			buffer <<= 1;
+			buffer |= (code.charAt(i) == '1') ? 1 : 0;
+			buffersize++;
 		}
+	}
 
-		for (int i = 0; i < bits.length; i++) {
+
+	/**
+	 * Adds the low n bits of value to the write buffer, most significant
+	 * first. Equivalent to writeByte() without the string.
+	 *
+	 * @param	value	Bits to write
+	 * @param	n		Number of bits, at most 32
+	 **/
+	public void writeBits(int value, int n) {
+		for (int i = n - 1; i >= 0; i--) {
 			//Flush buffer and reset, if byte is full
 			if (buffersize == 8) {
 				try {
-					data.write(buffer);
+					put(buffer);
 				} catch (IOException ioe) {
 					System.err.println("Error writing to file.");
 				}
@@ -60,13 +90,81 @@ public class ByteWriter {
 			}
 
 			//Shift in a new bit
-			buffer <<= 1;
-			buffer |= (int)bits[i];
+			buffer = (buffer << 1) | ((value >>> i) & 1);
 			buffersize++;
 		}
 	}
 
 
+	/**
+	 * Writes whole bytes straight to the file. The write buffer must be
+	 * empty, see takeBuffer().
+	 *
+	 * @return	False if the write failed
+	 **/
+	public boolean writeRaw(byte[] bytes, int offset, int length) {
+		try {
+			while (length > 0) {
+				if (!out.hasRemaining()) {
+					drain();
+				}
+
+				int n = Math.min(length, out.remaining());
+				out.put(bytes, offset, n);
+				offset += n;
+				length -= n;
+			}
+			return true;
+		} catch (IOException ioe) {
+			System.err.println("Error writing to file.");
+			return false;
+		}
+	}
+
+
+	/**
+	 * Queues one finished byte for the file.
+	 **/
+	private void put(int b) throws IOException {
+		if (!out.hasRemaining()) {
+			drain();
+		}
+		out.put((byte)b);
+	}
+
+
+	/**
+	 * Sends every queued byte to the file.
+	 **/
+	private void drain() throws IOException {
+		out.flip();
+		while (out.hasRemaining()) {
+			data.write(out);
+		}
+		out.clear();
+	}
+
+
+	/**
+	 * Number of bits waiting in the write buffer, up to 8.
+	 **/
+	public int getBufferSize() {
+		return buffersize;
+	}
+
+
+	/**
+	 * Empties the write buffer and returns its bits, so the caller can
+	 * carry on from them. Check getBufferSize() first.
+	 **/
+	public int takeBuffer() {
+		int bits = buffer;
+		buffer = 0;
+		buffersize = 0;
+		return bits;
+	}
+
+
 	/**
 	 * Prepends zeroes to code and sends off to be written
 	 *
@@ -96,8 +194,12 @@ public class ByteWriter {
 
 	/**
 	 * Clears the buffer and closes the output file.
+	 *
+	 * @return	True if everything buffered reached the file
 	 **/
-	public void close() {
+	public boolean close() {
+		boolean ok = true;
+
 		/*
 		 * Append zeroes to fill up last byte. Because the last character is
 		 * EOF, the decompressor won't read beyond it anyways.
@@ -109,18 +211,24 @@ public class ByteWriter {
 			}
 
 			try {
-				data.write(buffer);
+				put(buffer);
 				System.out.println("Last byte written: " + buffer);
 			} catch (IOException ioe) {
 				System.out.println("Failed flushing buffer.");
+				ok = false;
 			}
 		}
 
 		try {
-			data.flush();
+			drain();
 			data.close();
 		} catch (Exception e) {
 			System.err.println("File broke while closing.");
+			ok = false;
 		}
+
+		BufferPool.release(out);
+		out = null;
+		return ok;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,292 @@
+import java.util.Arrays;
+
+public class CodeTable {
+	public static final int MAX_LENGTH = 24;		//Longest code allowed
+	public static final int MAX_SYMBOLS = 1 << 17;	//Largest alphabet supported
+	private static final int LOOKUP_BITS = 10;		//Width of fast decode table
+
+	private int[] lengths;		//Code length per symbol, 0 if unused
+	private int[] codes;		//Canonical code per symbol
+	private int[] lookup;		//(symbol << 5) | length for codes <= LOOKUP_BITS
+	private int[] first;		//First canonical code of each length
+	private int[] count;		//Number of codes of each length
+	private int[] offset;		//Index in sorted of the first code of each length
+	private int[] sorted;		//Symbols in canonical order
+	private int maxLength;		//Longest code actually in use
+	private boolean valid;		//False if the lengths do not form a prefix code
+
+
+	/**
+	 * Builds canonical Huffman codes from a list of code lengths. Symbols
+	 * with length 0 are not part of the code.
+	 *
+	 * Codes are assigned in order of length, then symbol, so only the
+	 * lengths ever need to be stored.
+	 *
+	 * @param	lengths	Code length for every symbol of the alphabet
+	 **/
+	public CodeTable(int[] lengths) {
+		this.lengths = lengths;
+		codes = new int[lengths.length];
+		first = new int[MAX_LENGTH + 1];
+		count = new int[MAX_LENGTH + 1];
+		offset = new int[MAX_LENGTH + 1];
+		maxLength = 0;
+		valid = true;
+
+		/*
+		 * Count codes of each length, checking they fit in a prefix code
+		 */
+		long space = 1L << MAX_LENGTH;
+		int used = 0;
+		for (int s = 0; s < lengths.length; s++) {
+			int len = lengths[s];
+			if (len < 0 || len > MAX_LENGTH) {
+				valid = false;
+				return;
+			}
+			if (len > 0) {
+				count[len]++;
+				space -= 1L << (MAX_LENGTH - len);
+				maxLength = Math.max(maxLength, len);
+				used++;
+			}
+		}
+		if (space < 0) {
+			valid = false;
+			return;
+		}
+
+		/*
+		 * Work out where each length starts, then hand out codes
+		 */
+		int code = 0;
+		int index = 0;
+		for (int len = 1; len <= MAX_LENGTH; len++) {
+			code = (code + count[len - 1]) << 1;
+			first[len] = code;
+			offset[len] = index;
+			index += count[len];
+		}
+
+		sorted = new int[used];
+		int[] fill = offset.clone();
+		for (int s = 0; s < lengths.length; s++) {
+			int len = lengths[s];
+			if (len > 0) {
+				codes[s] = first[len] + (fill[len] - offset[len]);
+				sorted[fill[len]++] = s;
+			}
+		}
+
+		/*
+		 * Short codes are decoded with a single table look-up
+		 */
+		lookup = new int[1 << LOOKUP_BITS];
+		for (int s = 0; s < lengths.length; s++) {
+			int len = lengths[s];
+			if (len > 0 && len <= LOOKUP_BITS) {
+				int start = codes[s] << (LOOKUP_BITS - len);
+				int end = start + (1 << (LOOKUP_BITS - len));
+				Arrays.fill(lookup, start, end, (s << 5) | len);
+			}
+		}
+	}
+
+
+	/**
+	 * Generates a code table from symbol counts. Symbols that never occur
+	 * get no code.
+	 *
+	 * The tree is built the same way as Compress.generateHuffmanTree, with
+	 * a sorted list of leaves and a queue of joined trees, but on plain
+	 * arrays so large alphabets stay cheap. If a code would be longer than
+	 * MAX_LENGTH, the counts are halved and the tree rebuilt.
+	 *
+	 * @param	counts	Number of occurrences of every symbol
+	 * @return	The resulting table
+	 **/
+	public static CodeTable fromCounts(long[] counts) {
+		int[] lengths = new int[counts.length];
+		long[] scaled = counts.clone();
+
+		while (buildLengths(scaled, lengths) > MAX_LENGTH) {
+			for (int i = 0; i < scaled.length; i++) {
+				if (scaled[i] > 0) {
+					scaled[i] = (scaled[i] + 1) >>> 1;
+				}
+			}
+		}
+
+		return new CodeTable(lengths);
+	}
+
+
+	/**
+	 * Fills in Huffman code lengths for the given counts.
+	 *
+	 * @return	The longest code length produced
+	 **/
+	private static int buildLengths(long[] counts, int[] lengths) {
+		Arrays.fill(lengths, 0);
+
+		/*
+		 * Sort used symbols by count. Count and symbol share one long, which
+		 * holds as long as no count reaches 2^46.
+		 */
+		int n = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				n++;
+			}
+		}
+		if (n == 0) {
+			return 0;
+		}
+
+		long[] keys = new long[n];
+		n = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				keys[n++] = (counts[i] << 17) | i;
+			}
+		}
+		Arrays.sort(keys);
+
+		//A lone symbol still needs one bit
+		if (n == 1) {
+			lengths[(int)(keys[0] & 0x1FFFF)] = 1;
+			return 1;
+		}
+
+		/*
+		 * Leaves occupy 0..n-1, joined trees are appended after them. Ties
+		 * go to the leaf, as in Compress.findProbTree.
+		 */
+		int nodes = 2 * n - 1;
+		long[] weight = new long[nodes];
+		int[] parent = new int[nodes];
+		for (int i = 0; i < n; i++) {
+			weight[i] = keys[i] >>> 17;
+		}
+
+		int leaf = 0;
+		int tree = n;
+		for (int next = n; next < nodes; next++) {
+			int left = (leaf < n && (tree == next || weight[leaf] <= weight[tree]))
+				? leaf++ : tree++;
+			int right = (leaf < n && (tree == next || weight[leaf] <= weight[tree]))
+				? leaf++ : tree++;
+
+			weight[next] = weight[left] + weight[right];
+			parent[left] = next;
+			parent[right] = next;
+		}
+
+		/*
+		 * Depth of each node is one more than its parent's
+		 */
+		int[] depth = new int[nodes];
+		int longest = 0;
+		for (int i = nodes - 2; i >= 0; i--) {
+			depth[i] = depth[parent[i]] + 1;
+		}
+		for (int i = 0; i < n; i++) {
+			lengths[(int)(keys[i] & 0x1FFFF)] = depth[i];
+			longest = Math.max(longest, depth[i]);
+		}
+
+		return longest;
+	}
+
+
+	/**
+	 * Appends the code for a symbol.
+	 **/
+	public void encode(BitWriter out, int symbol) {
+		out.writeBits(codes[symbol], lengths[symbol]);
+	}
+
+
+	/**
+	 * Reads one code and returns its symbol.
+	 *
+	 * @return	The decoded symbol, or -1 if the bits match no code
+	 **/
+	public int decode(BitReader in) {
+		int entry = lookup[in.peekBits(LOOKUP_BITS)];
+		if (entry != 0) {
+			in.skipBits(entry & 0x1F);
+			return entry >>> 5;
+		}
+
+		/*
+		 * Longer codes: within a length, canonical codes are consecutive
+		 */
+		for (int len = LOOKUP_BITS + 1; len <= maxLength; len++) {
+			int code = in.peekBits(len) - first[len];
+			if (code >= 0 && code < count[len]) {
+				in.skipBits(len);
+				return sorted[offset[len] + code];
+			}
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Writes the code lengths, five bits per symbol.
+	 **/
+	public void write(BitWriter out) {
+		for (int s = 0; s < lengths.length; s++) {
+			out.writeBits(lengths[s], 5);
+		}
+	}
+
+
+	/**
+	 * Reads a table written by write().
+	 *
+	 * @param	in		Source of the lengths
+	 * @param	symbols	Size of the alphabet
+	 * @return	The table, or NULL if the lengths are corrupt
+	 **/
+	public static CodeTable read(BitReader in, int symbols) {
+		int[] lengths = new int[symbols];
+		for (int s = 0; s < symbols; s++) {
+			lengths[s] = in.readBits(5);
+		}
+
+		CodeTable table = new CodeTable(lengths);
+		if (!table.isValid()) {
+			System.out.println("Code table corrupt: lengths overflow");
+			return null;
+		}
+		return table;
+	}
+
+
+	/**
+	 * Accessors
+	 **/
+	public boolean isValid() {
+		return valid;
+	}
+
+	public int symbols() {
+		return lengths.length;
+	}
+
+	public int getLength(int symbol) {
+		return lengths[symbol];
+	}
+
+	public int getCode(int symbol) {
+		return codes[symbol];
+	}
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+}
@@ -0,0 +1,311 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+public class Codec {
+	private static final int STORED = 0;		//Low bit of the header
+	private static final int CODED = 1;
+
+	private final CodeTable table;		//Shared by every message, never changed
+	private final int[] lengths;		//Code length per byte value
+	private final int[] codes;			//Code per byte value
+
+	private static final ThreadLocal<Scratch> scratch =
+		ThreadLocal.withInitial(Scratch::new);
+
+
+	/**
+	 * Creates a codec for many small messages that resemble a sample.
+	 *
+	 * A table per message would often cost more than the message, so the
+	 * table is built once, from the sample, and both sides must use the
+	 * same one (see getTable()). Every byte value gets a code, so any
+	 * message can be coded. A message is laid out as:
+	 * 			header   payload
+	 * where the header is the varint (length << 1) | CODED, or STORED when
+	 * coding would not make the message smaller and the payload is raw.
+	 *
+	 * The codec holds no mutable state; scratch space is per thread, so
+	 * one instance can be shared by any number of threads.
+	 *
+	 * @param	sample	Data typical of the messages
+	 **/
+	public Codec(byte[] sample) {
+		this(train(sample));
+	}
+
+
+	/**
+	 * Creates a codec around a table agreed with the other side. The table
+	 * must be a valid prefix code with a code for every byte value, or
+	 * some messages could not be coded.
+	 *
+	 * @param	table	Table over 256 symbols
+	 * @throws	IllegalArgumentException	If the table can't code every byte
+	 **/
+	public Codec(CodeTable table) {
+		if (!table.isValid() || table.symbols() != 256) {
+			throw new IllegalArgumentException("table must be a valid code over 256 symbols");
+		}
+		for (int s = 0; s < 256; s++) {
+			if (table.getLength(s) == 0) {
+				throw new IllegalArgumentException("no code for byte " + s);
+			}
+		}
+
+		this.table = table;
+		lengths = new int[256];
+		codes = new int[256];
+		for (int s = 0; s < 256; s++) {
+			lengths[s] = table.getLength(s);
+			codes[s] = table.getCode(s);
+		}
+	}
+
+
+	private static CodeTable train(byte[] sample) {
+		Histogram h = new Histogram();
+		h.add(sample, 0, sample.length);
+		long[] counts = h.counts().clone();
+		for (int s = 0; s < 256; s++) {
+			counts[s]++;
+		}
+		return CodeTable.fromCounts(counts);
+	}
+
+
+	public CodeTable getTable() {
+		return table;
+	}
+
+
+	/**
+	 * Largest possible output of compress() for a message of the given
+	 * length. Messages that do not shrink are stored, so this is reached
+	 * exactly by incompressible input.
+	 **/
+	public static int maxCompressedLength(int length) {
+		return Varint.size(((long)length << 1) | CODED) + length;
+	}
+
+
+	/**
+	 * Original length of a compressed message, read from its header
+	 * without consuming it.
+	 *
+	 * @return	The length, or -1 if the header is incomplete
+	 **/
+	public static int decompressedLength(ByteBuffer src) {
+		long header = readHeader(src, src.position());
+		return (header < 0 || (header >>> 1) > Integer.MAX_VALUE) ? -1 : (int)(header >>> 1);
+	}
+
+
+	/**
+	 * Compresses the remaining bytes of src into dst, advancing both.
+	 *
+	 * @return	Number of bytes written to dst
+	 * @throws	BufferOverflowException	if dst has less room than needed,
+	 * 			in which case neither buffer moves
+	 **/
+	public int compress(ByteBuffer src, ByteBuffer dst) {
+		Scratch s = scratch.get();
+		int n = src.remaining();
+		byte[] in;
+		int offset;
+		if (src.hasArray()) {
+			in = src.array();
+			offset = src.arrayOffset() + src.position();
+		} else {
+			in = s.input(n);
+			offset = 0;
+			src.get(src.position(), in, 0, n);
+		}
+
+		/*
+		 * Size the codes first, so stored messages are not coded at all
+		 */
+		long bits = 0;
+		for (int i = offset; i < offset + n; i++) {
+			bits += lengths[in[i] & 0xFF];
+		}
+		int coded = (int)((bits + 7) >>> 3);
+		int type = (coded < n) ? CODED : STORED;
+
+		long header = ((long)n << 1) | type;
+		int total = Varint.size(header) + ((type == CODED) ? coded : n);
+		if (dst.remaining() < total) {
+			throw new BufferOverflowException();
+		}
+
+		writeHeader(dst, header);
+		if (type == STORED) {
+			dst.put(in, offset, n);
+		} else {
+			BitWriter out = s.output;
+			out.reset();
+			for (int i = offset; i < offset + n; i++) {
+				int b = in[i] & 0xFF;
+				out.writeBits(codes[b], lengths[b]);
+			}
+			out.align();
+			dst.put(out.array(), 0, out.size());
+		}
+		src.position(src.position() + n);
+
+		return total;
+	}
+
+
+	/**
+	 * Decompresses one message from src into dst, advancing both.
+	 *
+	 * @return	Number of bytes written to dst, or -1 if the message is
+	 * 			truncated or corrupt, in which case neither buffer moves
+	 * @throws	BufferOverflowException	if dst has less room than the
+	 * 			message, in which case neither buffer moves
+	 **/
+	public int decompress(ByteBuffer src, ByteBuffer dst) {
+		long header = readHeader(src, src.position());
+		if (header < 0 || (header >>> 1) > Integer.MAX_VALUE) {
+			return -1;
+		}
+		int n = (int)(header >>> 1);
+		if (dst.remaining() < n) {
+			throw new BufferOverflowException();
+		}
+
+		/*
+		 * Everything is read at absolute positions, so src only moves once
+		 * the whole message is known to be good
+		 */
+		Scratch s = scratch.get();
+		boolean stored = (header & 1) == STORED;
+		int start = src.position() + Varint.size(header);
+		int available = src.limit() - start;
+		if (stored && available < n) {
+			return -1;
+		}
+
+		//No code is longer than MAX_LENGTH, so the message ends by here
+		int length = stored ? n
+			: (int)Math.min(available, ((long)n * CodeTable.MAX_LENGTH + 7) / 8);
+
+		byte[] in;
+		int offset;
+		if (src.hasArray()) {
+			in = src.array();
+			offset = src.arrayOffset() + start;
+		} else {
+			in = s.input(length);
+			offset = 0;
+			src.get(start, in, 0, length);
+		}
+
+		if (stored) {
+			dst.put(in, offset, n);
+			src.position(start + n);
+			return n;
+		}
+
+		byte[] out = s.output(n);
+		BitReader bits = s.bits;
+		bits.reset(in, offset, length);
+		for (int i = 0; i < n; i++) {
+			int symbol = table.decode(bits);
+			if (symbol < 0) {
+				return -1;
+			}
+			out[i] = (byte)symbol;
+		}
+		long used = (bits.position() + 7) >>> 3;
+		if (used > length) {
+			return -1;
+		}
+
+		dst.put(out, 0, n);
+		src.position(start + (int)used);
+		return n;
+	}
+
+
+	/**
+	 * Array versions of compress() and decompress().
+	 *
+	 * @return	The result, or NULL if a compressed message is corrupt
+	 **/
+	public byte[] compress(byte[] src) {
+		ByteBuffer dst = ByteBuffer.allocate(maxCompressedLength(src.length));
+		compress(ByteBuffer.wrap(src), dst);
+		byte[] out = new byte[dst.position()];
+		System.arraycopy(dst.array(), 0, out, 0, out.length);
+		return out;
+	}
+
+	public byte[] decompress(byte[] src) {
+		ByteBuffer in = ByteBuffer.wrap(src);
+		int n = decompressedLength(in);
+		if (n < 0) {
+			return null;
+		}
+		byte[] out = new byte[n];
+		return (decompress(in, ByteBuffer.wrap(out)) < 0) ? null : out;
+	}
+
+
+	private static void writeHeader(ByteBuffer dst, long value) {
+		while ((value & ~0x7FL) != 0) {
+			dst.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		dst.put((byte)value);
+	}
+
+
+	/**
+	 * Reads a header at an absolute position, without moving src. Headers
+	 * are always written in their shortest form, so Varint.size() of the
+	 * result is how many bytes it took.
+	 *
+	 * @return	The header, or -1 if src ends inside it or it isn't in its
+	 * 			shortest form
+	 **/
+	private static long readHeader(ByteBuffer src, int at) {
+		long value = 0;
+		for (int shift = 0, i = at; shift < 64; shift += 7, i++) {
+			if (i >= src.limit()) {
+				return -1;
+			}
+			int b = src.get(i) & 0xFF;
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (Varint.size(value) == i - at + 1) ? value : -1;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Per-thread buffers, grown to the largest message seen.
+	 **/
+	private static class Scratch {
+		BitWriter output = new BitWriter(1 << 12);
+		BitReader bits = new BitReader(new byte[0], 0, 0);
+		byte[] in = new byte[1 << 12];
+		byte[] out = new byte[1 << 12];
+
+		byte[] input(int n) {
+			if (in.length < n) {
+				in = new byte[n];
+			}
+			return in;
+		}
+
+		byte[] output(int n) {
+			if (out.length < n) {
+				out = new byte[n];
+			}
+			return out;
+		}
+	}
+}
@@ -1,12 +1,25 @@
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.PriorityQueue;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Compress {
 	private ByteReader br;
 	private ByteWriter bw;
 	private Bits[] byteTable;
+	private String source;
+
+	private static final int SEGMENT_SIZE = 1 << 22;	//Bytes per parallel task
+	public static final int SOH = 0x01;			//First byte of the original format
+	public static final int SIZED = 0x03;		//First byte of the sized format, see compressSized
 
 
 	/**
@@ -14,6 +27,7 @@ public class Compress {
 	 * target files.
 	 **/
 	public Compress(String file) {
+		source = file;
 		br = new ByteReader(file);
 		bw = new ByteWriter(file + ".011");
 		byteTable = new Bits[257];
@@ -35,18 +49,26 @@ public class Compress {
 	 * Collects and counts all bytes, returns them in ascending order of
 	 * frequency.
 	 *
-	 * @return	A PriorityQueue with all Bits from least to most common
+	 * @return	A PriorityQueue with all Bits from least to most common, or
+	 * 			NULL if the file could not be read to the end
 	 **/
 	public PriorityQueue<Bits> findFrequencies() {
 		/* 
-		 * Read and count every byte until EOF 
+		 * Read and count every byte until EOF, a buffer at a time
 		 */
-		while (!br.eof()) {
-			/* Convert byte to integer value */
-			int value = Integer.parseInt(br.grabBits(8), 2);
+		Histogram histogram = new Histogram();
+		byte[] chunk = new byte[1 << 16];
+		int n;
+		while ((n = br.read(chunk, 0, chunk.length)) > 0) {
+			histogram.add(chunk, 0, n);
+		}
+		if (br.readFailure()) {
+			return null;
+		}
 
-			/* Record byte */
-			byteTable[value].addInstance();
+		/* Record bytes */
+		for (int i = 0; i < 256; i++) {
+			byteTable[i].addInstances(histogram.get(i));
 		}
 
 		/*
@@ -261,11 +283,8 @@ public class Compress {
 		 * Read every character until EOF, write encoding to target file
 		 */
 		while (!br.eof()) {
-			//Grab next byte
-			String curr = br.grabBits(8);
-
-			//Look up Huffman code for byte
-			int index = Integer.parseInt(curr, 2);
+			//Grab next byte and look up its Huffman code
+			int index = br.readBits(8);
 			String code = byteTable[index].getCode();
 
 			//Write to binary file
@@ -288,6 +307,355 @@ public class Compress {
 	}
 
 
+	/**
+	 * Pipelined version of writeBody(). A reader thread fills buffers from
+	 * the source file while this thread encodes them, and a writer thread
+	 * drains the encoded buffers to the target file. The output is identical
+	 * to writeBody().
+	 *
+	 * Codes are packed into a long while encoding, so this only runs if
+	 * every code fits in 56 bits (see codesFit()). Otherwise nothing is
+	 * written.
+	 *
+	 * @return	False if the codes are too long, or reading or writing
+	 * 			failed and the output is incomplete
+	 **/
+	public boolean writeBodyPipelined() {
+		long[] codes = new long[257];
+		int[] lengths = new int[257];
+		if (!packCodes(codes, lengths)) {
+			return false;
+		}
+
+		//Return to beginning of source file
+		br.reset();
+
+		//Carry on from the partial byte the header left behind
+		int pending = bw.getBufferSize();
+		long bits = bw.takeBuffer();
+
+		Pipeline pipe = new Pipeline(br, bw);
+		RingBuffer.Slot out = null;
+		int used = 0;
+		long codeBits = 0;
+		long numCodes = 0;
+
+		try {
+			out = pipe.output().claim();
+
+			/*
+			 * Encode every buffer the reader hands over, two bytes at a time
+			 * where their joint code fits in PairTable.MAX_BITS. A slot is
+			 * passed on before it could overflow; two codes add at most 15
+			 * bytes. Small files don't pay for building the pairs.
+			 */
+			PairTable pairs = null;
+			if (new File(source).length() >= PairTable.MIN_LENGTH) {
+				pairs = new PairTable();
+				pairs.update(codes, lengths);
+			}
+
+			RingBuffer.Slot in;
+			encode:
+			while (out != null && (in = pipe.input().take()) != null) {
+				byte[] src = in.data;
+				for (int i = 0; i < in.length; i += 2) {
+					if (out.data.length - used < 16) {
+						out.length = used;
+						pipe.output().publish();
+						out = pipe.output().claim();
+						used = 0;
+						if (out == null) {
+							break encode;
+						}
+					}
+
+					int index = src[i] & 0xFF;
+					long pair = (pairs != null && i + 1 < in.length)
+						? pairs.get(index, src[i + 1] & 0xFF) : 0;
+					if (pair != 0) {
+						int length = (int)pair & 0x3F;
+						bits = (bits << length) | (pair >>> 6);
+						pending += length;
+						codeBits += length;
+					} else {
+						bits = (bits << lengths[index]) | codes[index];
+						pending += lengths[index];
+						codeBits += lengths[index];
+						i--;
+					}
+
+					while (pending >= 8) {
+						pending -= 8;
+						out.data[used++] = (byte)(bits >>> pending);
+					}
+				}
+				numCodes += in.length;
+				pipe.input().release();
+			}
+
+			/*
+			 * Write EOF and hand over the last full bytes
+			 */
+			if (out != null) {
+				String code = byteTable[256].getCode();
+				System.out.println("Writing EOF @" + code);
+				bits = (bits << lengths[256]) | codes[256];
+				pending += lengths[256];
+				while (pending >= 8) {
+					pending -= 8;
+					out.data[used++] = (byte)(bits >>> pending);
+				}
+				out.length = used;
+				pipe.output().publish();
+			}
+		} catch (InterruptedException ie) {
+			System.out.println("Interrupted while encoding.");
+			out = null;
+		}
+
+		boolean ok = pipe.finish() && out != null;
+
+		//Leftover bits go back through the writer, which pads on close
+		bw.writeBits((int)bits & ((1 << pending) - 1), pending);
+		ok = bw.close() && ok;
+		if (!ok) {
+			System.out.println("Error reading or writing file.");
+		}
+
+		System.out.println("Average code length: " + (double)codeBits / (double)numCodes);
+		return ok;
+	}
+
+
+	/**
+	 * Parallel version of writeBody(). The output is identical to
+	 * writeBody(), but the source is encoded in segments on several threads.
+	 *
+	 * The exact size of each segment's output is known before it is
+	 * encoded: it is the segment's byte counts times the code lengths. A
+	 * running sum of those sizes gives the bit where every segment starts,
+	 * so each one is encoded already shifted into place and the partial
+	 * bytes where segments meet are simply OR'd together.
+	 *
+	 * Codes are packed into a long while encoding, so this only runs if
+	 * every code fits in 56 bits (see codesFit()). Otherwise nothing is
+	 * written.
+	 *
+	 * @param	threads	Number of encoding threads
+	 * @return	False if the codes are too long, or encoding failed and the
+	 * 			output is incomplete
+	 **/
+	public boolean writeBodyParallel(int threads) {
+		long[] codes = new long[257];
+		int[] lengths = new int[257];
+		if (!packCodes(codes, lengths)) {
+			return false;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		long codeBits = 0;
+		long numCodes = 0;
+		boolean ok = true;
+
+		try (FileChannel channel = new FileInputStream(source).getChannel()) {
+			long size = channel.size();
+			int segments = (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+
+			/*
+			 * Pass 1: exact bit length of every segment
+			 */
+			List<Future<Long>> sizes = new ArrayList<>();
+			for (int i = 0; i < segments; i++) {
+				long start = (long)i * SEGMENT_SIZE;
+				int length = (int)Math.min(SEGMENT_SIZE, size - start);
+				sizes.add(pool.submit(() -> segmentBits(channel, start, length, lengths)));
+			}
+
+			/*
+			 * The header's partial byte is where the body starts. A full
+			 * byte can go straight out.
+			 */
+			int carryBits = bw.getBufferSize();
+			int carry = bw.takeBuffer();
+			if (carryBits == 8) {
+				if (!bw.writeRaw(new byte[] {(byte)carry}, 0, 1)) {
+					throw new IOException("write failed");
+				}
+				carryBits = 0;
+				carry = 0;
+			}
+			carry <<= 8 - carryBits;
+
+			long[] offsets = new long[segments + 1];
+			offsets[0] = carryBits;
+			for (int i = 0; i < segments; i++) {
+				offsets[i + 1] = offsets[i] + sizes.get(i).get();
+			}
+			codeBits = offsets[segments] - carryBits;
+			numCodes = size;
+
+			/*
+			 * Pass 2: encode segments, a bounded number ahead of the one
+			 * being written, and stitch them together in order
+			 */
+			List<Future<byte[]>> encoded = new ArrayList<>();
+			int window = threads * 2;
+			for (int i = 0; i < segments; i++) {
+				while (encoded.size() < segments && encoded.size() <= i + window) {
+					int k = encoded.size();
+					long start = (long)k * SEGMENT_SIZE;
+					int length = (int)Math.min(SEGMENT_SIZE, size - start);
+					int shift = (int)(offsets[k] & 7);
+					long bits = offsets[k + 1] - offsets[k];
+					encoded.add(pool.submit(() ->
+						encodeSegment(channel, start, length, shift, bits, codes, lengths)));
+				}
+
+				byte[] out = encoded.get(i).get();
+				encoded.set(i, null);
+				if (out.length == 0) {
+					continue;
+				}
+
+				out[0] |= (byte)carry;
+				int tail = (int)(offsets[i + 1] & 7);
+				if (tail == 0) {
+					if (!bw.writeRaw(out, 0, out.length)) {
+						throw new IOException("write failed");
+					}
+					carry = carryBits = 0;
+				} else {
+					if (!bw.writeRaw(out, 0, out.length - 1)) {
+						throw new IOException("write failed");
+					}
+					carry = out[out.length - 1] & 0xFF;
+					carryBits = tail;
+				}
+			}
+
+			//Hand the last partial byte back to the writer
+			bw.writeBits(carry >>> (8 - carryBits), carryBits);
+		} catch (IOException | InterruptedException | ExecutionException e) {
+			System.out.println("Error encoding in parallel: " + e.getMessage());
+			ok = false;
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (!ok) {
+			bw.close();
+			return false;
+		}
+
+		/*
+		 * Write EOF and clear write buffer
+		 */
+		String code = byteTable[256].getCode();
+		System.out.println("Writing EOF @" + code);
+		bw.writeByte(code);
+		if (!bw.close()) {
+			System.out.println("Error writing file.");
+			return false;
+		}
+
+		System.out.println("Average code length: " + (double)codeBits / (double)numCodes);
+		return true;
+	}
+
+
+	/**
+	 * Counts a segment's bytes and works out how many bits its codes take.
+	 **/
+	private static long segmentBits(FileChannel channel, long start, int length,
+			int[] lengths) throws IOException {
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		Histogram histogram = new Histogram();
+		byte[] chunk = new byte[1 << 16];
+
+		while (map.hasRemaining()) {
+			int n = Math.min(chunk.length, map.remaining());
+			map.get(chunk, 0, n);
+			histogram.add(chunk, 0, n);
+		}
+
+		long bits = 0;
+		for (int i = 0; i < 256; i++) {
+			bits += histogram.get(i) * lengths[i];
+		}
+		return bits;
+	}
+
+
+	/**
+	 * Encodes a segment as if it started shift bits into a byte. Those
+	 * leading bits are left as zeroes for the caller to fill in. The last
+	 * byte is included even if only partly used.
+	 *
+	 * @param	size	Bit length of the segment, from segmentBits()
+	 **/
+	private static byte[] encodeSegment(FileChannel channel, long start, int length,
+			int shift, long size, long[] codes, int[] lengths) throws IOException {
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		byte[] chunk = new byte[1 << 16];
+
+		long bits = 0;
+		byte[] out = new byte[(int)((shift + size + 7) / 8)];
+		int used = 0;
+		int pending = shift;
+
+		while (map.hasRemaining()) {
+			int n = Math.min(chunk.length, map.remaining());
+			map.get(chunk, 0, n);
+
+			for (int i = 0; i < n; i++) {
+				int index = chunk[i] & 0xFF;
+				bits = (bits << lengths[index]) | codes[index];
+				pending += lengths[index];
+
+				while (pending >= 8) {
+					pending -= 8;
+					out[used++] = (byte)(bits >>> pending);
+				}
+			}
+		}
+
+		if (pending > 0) {
+			out[used] = (byte)(bits << (8 - pending));
+		}
+		return out;
+	}
+
+
+	/**
+	 * Check if every code fits in the 56 bits the fast body writers pack
+	 * codes into.
+	 **/
+	public boolean codesFit() {
+		return packCodes(new long[257], new int[257]);
+	}
+
+
+	/**
+	 * Copies the Huffman codes into primitive arrays.
+	 *
+	 * @return	False if a code is longer than 56 bits
+	 **/
+	private boolean packCodes(long[] codes, int[] lengths) {
+		for (int i = 0; i < 257; i++) {
+			String code = byteTable[i].getCode();
+			if (code != null) {
+				if (code.length() > 56) {
+					return false;
+				}
+				lengths[i] = code.length();
+				codes[i] = Long.parseLong(code, 2);
+			}
+		}
+		return true;
+	}
+
+
 	/**
 	 * Comparator to allow sorting by frequency. Less frequent items should
 	 * appear "before" more frequent items.
@@ -306,41 +674,331 @@ public class Compress {
 	}
 
 
-	public static void main(String[] args) {
+	/**
+	 * Compresses a single file to file.011, printing progress as it goes.
+	 *
+	 * @param	file	Name of the file to compress
+	 * @return	True if the compressed file was written
+	 **/
+	public static boolean compressFile(String file) {
+		return compressFile(file, 1);
+	}
+
+
+	/**
+	 * Compresses a single file to file.011, encoding on several threads if
+	 * asked to. The output is the same either way.
+	 *
+	 * @param	file	Name of the file to compress
+	 * @param	threads	Number of encoding threads
+	 * @return	True if the compressed file was written
+	 **/
+	public static boolean compressFile(String file, int threads) {
 		//Track compression time
 		long starttime = System.currentTimeMillis();
 
 		/* 
 		 * Ensure source and target files can be opened
 		 */
-		Compress c = new Compress(args[0]);
+		Compress c = new Compress(file);
 		if (c.br.loadFailure()) {
-			return;
+			return false;
 		}
 
 		//Read the source file, analyze for byte frequency
 		PriorityQueue<Bits> allCodes = c.findFrequencies();
+		if (allCodes == null) {
+			c.br.close();
+			c.bw.close();
+			new File(file + ".011").delete();
+			System.out.println("Compression failed, no output written.");
+			return false;
+		}
 		PriorityQueue<Bits> headerQueue = new PriorityQueue<Bits>(allCodes);
 
-		//Find the Huffman codes for the generated tree
-		Bits.findEncoding(c.generateHuffmanTree(allCodes));
-
 		/*
-		 * If there are less than two codes, something likely went wrong.
+		 * If there are less than two codes, something likely went wrong,
+		 * and there is no tree to build.
 		 */
 		if (headerQueue.size() < 2) {
 			System.out.println("Unable to compress, no codes generated.");
-			return;
+			c.br.close();
+			c.bw.close();
+			return false;
 		}
 
+		//Find the Huffman codes for the generated tree
+		Bits.findEncoding(c.generateHuffmanTree(allCodes));
+
 		/*
 		 * Write the header to the target file, and then process the source
 		 * file entirely.
 		 */
 		c.writeHeader(headerQueue);
-		c.writeBody();
+		boolean done = true;
+		if (!c.codesFit()) {
+			c.writeBody();
+		} else if (threads > 1) {
+			done = c.writeBodyParallel(threads);
+		} else {
+			done = c.writeBodyPipelined();
+		}
+		c.br.close();
+
+		//A partial file must not pass for a compressed one
+		if (!done) {
+			new File(file + ".011").delete();
+			System.out.println("Compression failed, no output written.");
+			return false;
+		}
 
 		long exectime = System.currentTimeMillis() - starttime;
 		System.out.println("Execution time: " + exectime + "ms");
+		return true;
+	}
+
+
+	/**
+	 * Compresses a single file to file.011 in the sized format:
+	 * 			0x03   length   code lengths   codes
+	 * The original length is a varint, so there is no EOF code taking up
+	 * room in the tree and lengthening the other codes, and the reader
+	 * knows the output size before it starts. Code lengths are written
+	 * as by CodeTable.write, five bits for each of the 256 bytes, which
+	 * leaves the codes starting on a byte boundary.
+	 *
+	 * The first byte stands in for the SOH of the original format, so
+	 * Decompress can tell the two apart.
+	 *
+	 * @param	file	Name of the file to compress
+	 * @return	True if the compressed file was written
+	 **/
+	public static boolean compressSized(String file) {
+		long starttime = System.currentTimeMillis();
+		byte[] chunk = new byte[1 << 16];
+		int n;
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file + ".011")))) {
+			/*
+			 * Pass 1: count
+			 */
+			Histogram histogram = new Histogram();
+			long size = 0;
+			try (InputStream in = new FileInputStream(file)) {
+				while ((n = in.read(chunk)) > 0) {
+					histogram.add(chunk, 0, n);
+					size += n;
+				}
+			}
+			CodeTable table = CodeTable.fromCounts(histogram.counts());
+
+			out.writeByte(SIZED);
+			Varint.write(out, size);
+			BitWriter lengths = new BitWriter(160);
+			table.write(lengths);
+			lengths.writeTo(out);
+
+			/*
+			 * Pass 2: codes are at most 24 bits, so a long never overflows
+			 */
+			int[] codes = new int[256];
+			int[] bitsPer = new int[256];
+			for (int i = 0; i < 256; i++) {
+				codes[i] = table.getCode(i);
+				bitsPer[i] = table.getLength(i);
+			}
+
+			byte[] buffer = new byte[chunk.length * 3 + 8];
+			long bits = 0;
+			int pending = 0;
+			long codeBits = 0;
+			try (InputStream in = new FileInputStream(file)) {
+				while ((n = in.read(chunk)) > 0) {
+					int used = 0;
+					for (int i = 0; i < n; i++) {
+						int index = chunk[i] & 0xFF;
+						bits = (bits << bitsPer[index]) | codes[index];
+						pending += bitsPer[index];
+						while (pending >= 8) {
+							pending -= 8;
+							buffer[used++] = (byte)(bits >>> pending);
+						}
+						codeBits += bitsPer[index];
+					}
+					out.write(buffer, 0, used);
+				}
+			}
+			if (pending > 0) {
+				out.writeByte((int)(bits << (8 - pending)));
+			}
+
+			System.out.println("Compressed " + size + " bytes to " + out.size() + " bytes");
+			System.out.println("Average code length: " + (double)codeBits / Math.max(size, 1));
+		} catch (FileNotFoundException fnfe) {
+			System.out.println("Unable to load file. Check filename.");
+			return false;
+		} catch (IOException ioe) {
+			System.out.println("Failed writing file: " + ioe.getMessage());
+			return false;
+		}
+
+		long exectime = System.currentTimeMillis() - starttime;
+		System.out.println("Execution time: " + exectime + "ms");
+		return true;
+	}
+
+
+	/**
+	 * Compresses a single file to file.011 as a file of blocks:
+	 * 			"011B"   blocks   END
+	 * Each block is coded on its own, trying the given block type first.
+	 *
+	 * @param	file	Name of the file to compress
+	 * @param	mode	Block type to try, see BlockWriter.parseMode
+	 * @param	level	Effort for LZ blocks, 1 to Lz.MAX_LEVEL
+	 * @param	threads	Number of blocks to code at once
+	 * @return	True if the compressed file was written
+	 **/
+	public static boolean compressBlocks(String file, int mode, int level, int threads) {
+		return compressBlocks(file, mode, level, threads, null);
+	}
+
+
+	/**
+	 * Compresses a single file to file.011 as a file of blocks, choosing
+	 * the effort of each block so the whole file is done within the given
+	 * time, then prints which levels were used.
+	 *
+	 * @param	file	Name of the file to compress
+	 * @param	seconds	Time allowed, or 0 to use rate instead
+	 * @param	rate	Megabytes per second to keep up, if seconds is 0
+	 * @return	True if the compressed file was written
+	 **/
+	public static boolean compressWithin(String file, double seconds, double rate) {
+		long size = new File(file).length();
+		EffortControl effort = (seconds > 0)
+			? new EffortControl(size, (long)(seconds * 1e9))
+			: EffortControl.forRate(size, rate);
+
+		if (!compressBlocks(file, BlockWriter.HUFFMAN, Lz.DEFAULT_LEVEL, 1, effort)) {
+			return false;
+		}
+		System.out.print(effort.report());
+		return true;
+	}
+
+
+	private static boolean compressBlocks(String file, int mode, int level, int threads,
+			EffortControl effort) {
+		long starttime = System.currentTimeMillis();
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file));
+				DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file + ".011")))) {
+			out.writeInt(BlockWriter.MAGIC);
+			BlockWriter blocks = new BlockWriter(out, mode, level);
+			blocks.setEffort(effort);
+			long raw = blocks.writeAll(in, threads);
+			blocks.finish();
+
+			System.out.println("Compressed " + raw + " bytes to "
+				+ (4 + blocks.getWritten()) + " bytes");
+		} catch (FileNotFoundException fnfe) {
+			System.out.println("Unable to load file. Check filename.");
+			return false;
+		} catch (IOException ioe) {
+			System.out.println("Failed writing blocks: " + ioe.getMessage());
+			return false;
+		}
+
+		long exectime = System.currentTimeMillis() - starttime;
+		System.out.println("Execution time: " + exectime + "ms");
+		return true;
+	}
+
+
+	/**
+	 * Usage:
+	 * 		java Compress [-j threads] [--cache dir] <file>
+	 * 		java Compress [-j threads] -m mode [-l level] <file>
+	 * 		java Compress --deadline seconds | --rate MB/s <file>
+	 * 		java Compress --sized <file>
+	 *
+	 * Without -m the file is written in the original .011 format. Modes are
+	 * stored, huffman, bigram, order1, lz and bwt; -l sets the lz effort, from 1
+	 * to 10, where 10 is the optimal parse. --deadline and --rate write
+	 * blocks too, picking the mode of each block to finish in time.
+	 * --sized writes the sized format, see compressSized(). --cache only
+	 * keeps the original format, so it can't be combined with the others.
+	 **/
+	public static void main(String[] args) {
+		int threads = 1;
+		String cache = null;
+		int mode = -1;
+		int level = Lz.DEFAULT_LEVEL;
+		double seconds = 0;
+		double rate = 0;
+		boolean sized = false;
+
+		int arg = 0;
+		while (arg < args.length - 1) {
+			if (args[arg].equals("--sized")) {
+				sized = true;
+				arg++;
+				continue;
+			}
+
+			if (args[arg].equals("-j")) {
+				threads = Integer.parseInt(args[arg + 1]);
+			} else if (args[arg].equals("--cache")) {
+				cache = args[arg + 1];
+			} else if (args[arg].equals("-m")) {
+				mode = BlockWriter.parseMode(args[arg + 1]);
+				if (mode < 0) {
+					System.out.println("Unknown mode: " + args[arg + 1]);
+					return;
+				}
+			} else if (args[arg].equals("-l")) {
+				level = Integer.parseInt(args[arg + 1]);
+			} else if (args[arg].equals("--deadline")) {
+				seconds = Double.parseDouble(args[arg + 1]);
+			} else if (args[arg].equals("--rate")) {
+				rate = Double.parseDouble(args[arg + 1]);
+			} else {
+				break;
+			}
+			arg += 2;
+		}
+
+		if (arg >= args.length) {
+			System.out.println("Usage: Compress [-j threads] [--cache dir] <file>");
+			System.out.println("       Compress [-j threads] -m mode [-l level] <file>");
+			System.out.println("       Compress --deadline seconds | --rate MB/s <file>");
+			System.out.println("       Compress --sized <file>");
+			return;
+		}
+
+		if (cache != null && (sized || seconds > 0 || rate > 0 || mode >= 0)) {
+			System.out.println("--cache only works with the original format");
+			return;
+		}
+
+		if (sized) {
+			compressSized(args[arg]);
+		} else if (seconds > 0 || rate > 0) {
+			compressWithin(args[arg], seconds, rate);
+		} else if (mode >= 0) {
+			compressBlocks(args[arg], mode, level, threads);
+		} else if (cache != null) {
+			try {
+				new CompressCache(cache, CompressCache.DEFAULT_LIMIT)
+					.compress(args[arg], threads);
+			} catch (IOException ioe) {
+				System.out.println("Unable to open cache: " + ioe.getMessage());
+			}
+		} else {
+			compressFile(args[arg], threads);
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class CompressCache {
+	public static final long DEFAULT_LIMIT = 1L << 30;	//1 GiB of entries
+	private static final long STALE_TEMP = 60 * 60 * 1000;	//Age of an abandoned temporary file
+
+	/*
+	 * Part of every key, so outputs of a different format never match
+	 */
+	private static final String FORMAT = "011-legacy-1";
+
+	private Path objects;		//Cached outputs, named by content hash
+	private Path stats;			//Size/mtime -> content hash, per source path
+	private Path lock;			//Held while evicting
+	private long limit;			//Most bytes of outputs and stat records to keep
+
+
+	/**
+	 * Opens, creating if needed, a cache of compressed outputs.
+	 *
+	 * Outputs are keyed by a hash of the source's contents, so a file that
+	 * was renamed or copied still hits. Hashing is skipped altogether when
+	 * a file's size and modification time match what was recorded for the
+	 * same path last time.
+	 *
+	 * Every entry is written to a temporary file and moved into place, so
+	 * several runs can share the cache without seeing half-written entries.
+	 *
+	 * @param	dir		Cache directory
+	 * @param	limit	Total size of outputs and stat records to keep, in
+	 * 					bytes
+	 **/
+	public CompressCache(String dir, long limit) throws IOException {
+		Path root = Path.of(dir);
+		objects = root.resolve("objects");
+		stats = root.resolve("stats");
+		lock = root.resolve("lock");
+		this.limit = limit;
+
+		Files.createDirectories(objects);
+		Files.createDirectories(stats);
+	}
+
+
+	/**
+	 * Compresses file to file.011, reusing a cached output if the same
+	 * contents have been compressed before.
+	 *
+	 * Hits are copied rather than hard-linked: ByteWriter truncates its
+	 * target in place, so a later run over a linked output would overwrite
+	 * the cached copy too.
+	 *
+	 * @param	file	File to compress
+	 * @param	threads	Encoding threads on a miss
+	 * @return	True if file.011 was produced
+	 **/
+	public boolean compress(String file, int threads) {
+		Path source = Path.of(file);
+		Path target = Path.of(file + ".011");
+
+		try {
+			long size = Files.size(source);
+			FileTime mtime = Files.getLastModifiedTime(source);
+
+			String key = lookupStat(source, size, mtime);
+			if (key == null) {
+				key = hashContents(source);
+			}
+			Path object = objects.resolve(key + ".011");
+
+			/*
+			 * Hit: copy the stored output, and mark it as recently used
+			 */
+			try {
+				Files.copy(object, target, StandardCopyOption.REPLACE_EXISTING);
+				Files.setLastModifiedTime(object, FileTime.fromMillis(System.currentTimeMillis()));
+				recordStat(source, size, mtime, key);
+				System.out.println("Cache hit: " + key);
+				return true;
+			} catch (NoSuchFileException nsfe) {
+				//Not cached, or evicted by another run
+			}
+
+			/*
+			 * Miss: compress, then store unless the source changed meanwhile
+			 */
+			if (!Compress.compressFile(file, threads)) {
+				return false;
+			}
+			if (Files.size(source) == size && Files.getLastModifiedTime(source).equals(mtime)) {
+				Path temp = Files.createTempFile(objects, "tmp", ".011");
+				Files.copy(target, temp, StandardCopyOption.REPLACE_EXISTING);
+				Files.move(temp, object, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+				recordStat(source, size, mtime, key);
+				evict();
+			}
+			return true;
+		} catch (IOException ioe) {
+			System.out.println("Cache failed, compressing directly: " + ioe.getMessage());
+			return Compress.compressFile(file, threads);
+		}
+	}
+
+
+	/**
+	 * Returns the content hash recorded for this path, if the file still
+	 * has the recorded size and modification time.
+	 **/
+	private String lookupStat(Path source, long size, FileTime mtime) throws IOException {
+		Path entry = stats.resolve(hash(source.toAbsolutePath().toString()));
+		try {
+			String[] fields = Files.readString(entry).trim().split(" ");
+			if (fields.length == 3 && Long.parseLong(fields[0]) == size
+					&& Long.parseLong(fields[1]) == mtime.toMillis()) {
+				return fields[2];
+			}
+		} catch (NoSuchFileException | NumberFormatException e) {
+			//No usable record
+		}
+		return null;
+	}
+
+
+	private void recordStat(Path source, long size, FileTime mtime, String key)
+			throws IOException {
+		Path entry = stats.resolve(hash(source.toAbsolutePath().toString()));
+		Path temp = Files.createTempFile(stats, "tmp", ".stat");
+		Files.writeString(temp, size + " " + mtime.toMillis() + " " + key);
+		Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE,
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+
+
+	/**
+	 * Deletes the least recently used outputs and stat records until the
+	 * cache fits its limit. Temporary files left behind by runs that died
+	 * are deleted once they are an hour old; younger ones may still be in
+	 * use. Only one run evicts at a time; others skip it.
+	 **/
+	private void evict() throws IOException {
+		try (FileChannel channel = FileChannel.open(lock,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock held = channel.tryLock()) {
+			if (held == null) {
+				return;
+			}
+
+			List<Path> entries = new ArrayList<>();
+			for (Path dir : new Path[] {objects, stats}) {
+				try (Stream<Path> list = Files.list(dir)) {
+					list.forEach(entries::add);
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			long total = 0;
+			List<long[]> info = new ArrayList<>();
+			for (int i = 0; i < entries.size(); i++) {
+				try {
+					long bytes = Files.size(entries.get(i));
+					long used = Files.getLastModifiedTime(entries.get(i)).toMillis();
+					if (entries.get(i).getFileName().toString().startsWith("tmp")) {
+						if (now - used > STALE_TEMP) {
+							Files.deleteIfExists(entries.get(i));
+						}
+						continue;
+					}
+					info.add(new long[] {used, bytes, i});
+					total += bytes;
+				} catch (NoSuchFileException nsfe) {
+					//Already gone
+				}
+			}
+
+			info.sort(Comparator.comparingLong(e -> e[0]));
+			for (long[] e : info) {
+				if (total <= limit) {
+					break;
+				}
+				Files.deleteIfExists(entries.get((int)e[2]));
+				total -= e[1];
+			}
+		} catch (OverlappingFileLockException ofle) {
+			//Another thread of this process is evicting
+		}
+	}
+
+
+	/**
+	 * SHA-256 of a file's contents plus the output format, as hex.
+	 **/
+	private static String hashContents(Path source) throws IOException {
+		MessageDigest digest = newDigest();
+		digest.update(FORMAT.getBytes(StandardCharsets.UTF_8));
+
+		byte[] chunk = new byte[1 << 16];
+		try (InputStream in = Files.newInputStream(source)) {
+			int n;
+			while ((n = in.read(chunk)) > 0) {
+				digest.update(chunk, 0, n);
+			}
+		}
+		return hex(digest.digest());
+	}
+
+
+	private static String hash(String text) {
+		return hex(newDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("SHA-256 missing", nsae);
+		}
+	}
+
+
+	private static String hex(byte[] bytes) {
+		StringBuilder s = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			s.append(Character.forDigit((b >>> 4) & 0xF, 16));
+			s.append(Character.forDigit(b & 0xF, 16));
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,114 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class CompressClient {
+	/**
+	 * Sends every named file to a running CompressDaemon over a single
+	 * connection and prints the daemon's output for each.
+	 *
+	 * The protocol is plain text, so anything that can write a line to a
+	 * socket can act as a client, e.g.
+	 * 		echo "compress /data/file" | nc -U ~/.011compress/daemon.sock
+	 * Over TCP the first line must be "auth " and the daemon's token, see
+	 * CompressDaemon.
+	 *
+	 * Usage:
+	 * 		java CompressClient [--unix <socket> | --port <n>]
+	 * 				compress|decompress <file>...
+	 **/
+	public static void main(String[] args) {
+		SocketAddress address = UnixDomainSocketAddress.of(CompressDaemon.DEFAULT_SOCKET);
+		StandardProtocolFamily family = StandardProtocolFamily.UNIX;
+		boolean tcp = false;
+
+		int arg = 0;
+		if (args.length > 1 && args[0].equals("--unix")) {
+			address = UnixDomainSocketAddress.of(args[1]);
+			arg = 2;
+		} else if (args.length > 1 && args[0].equals("--port")) {
+			address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				Integer.parseInt(args[1]));
+			family = StandardProtocolFamily.INET;
+			tcp = true;
+			arg = 2;
+		}
+
+		if (args.length - arg < 2) {
+			System.out.println("Usage: CompressClient [--unix <socket> | --port <n>] "
+				+ "compress|decompress <file>...");
+			return;
+		}
+		String command = args[arg++];
+
+		boolean allOk = true;
+		try (SocketChannel channel = SocketChannel.open(family)) {
+			channel.connect(address);
+			DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Channels.newInputStream(channel)));
+			OutputStream out = Channels.newOutputStream(channel);
+
+			if (tcp) {
+				String token = Files.readString(CompressDaemon.TOKEN).trim();
+				out.write(("auth " + token + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+
+			for (int i = arg; i < args.length; i++) {
+				/*
+				 * The daemon has its own working directory, so send full paths
+				 */
+				String file = Path.of(args[i]).toAbsolutePath().toString();
+				out.write((command + " " + file + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+				out.flush();
+
+				//Reply is a status line and the tool's output
+				String status = readLine(in);
+				if (status == null) {
+					System.out.println("Daemon closed the connection.");
+					System.exit(1);
+				}
+
+				int split = status.indexOf(' ');
+				if (split < 0) {
+					System.out.println("Daemon refused the request: " + status);
+					System.exit(1);
+				}
+				byte[] log = new byte[Integer.parseInt(status.substring(split + 1))];
+				in.readFully(log);
+				System.out.write(log, 0, log.length);
+				System.out.flush();
+
+				allOk &= status.startsWith("ok");
+			}
+		} catch (IOException ioe) {
+			System.out.println("Couldn't reach daemon: " + ioe.getMessage());
+			allOk = false;
+		}
+
+		if (!allOk) {
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * Reads an ASCII line without buffering past it.
+	 **/
+	private static String readLine(DataInputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			line.append((char)b);
+		}
+		return (b == -1 && line.length() == 0) ? null : line.toString();
+	}
+}
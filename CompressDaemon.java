@@ -0,0 +1,290 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class CompressDaemon {
+	public static final Path DIRECTORY =			//Socket and token, owner only
+		Path.of(System.getProperty("user.home"), ".011compress");
+	public static final Path DEFAULT_SOCKET = DIRECTORY.resolve("daemon.sock");
+	public static final Path TOKEN = DIRECTORY.resolve("token");
+
+	private ServerSocketChannel server;		//Listening socket
+	private ExecutorService workers;		//Runs one task per connection
+	private RequestOutput output;			//Routes stdout to the request
+	private String token;					//First line a TCP client must send, or NULL
+
+
+	/**
+	 * Starts listening for requests on a Unix domain socket, or on a
+	 * localhost port if one is given.
+	 *
+	 * Each request names a file that is already on this machine, so only
+	 * the path and the tool's output cross the socket. The JVM, its loaded
+	 * classes and its compiled code stay warm between requests.
+	 *
+	 * Requests run as the daemon's user, so only that user may send them.
+	 * The socket is made readable and writable by its owner only, and the
+	 * default one lives in DIRECTORY, which is private to the owner. A
+	 * TCP port can be reached by anyone on the machine, so there every
+	 * connection must first send "auth <token>", with the random token
+	 * the daemon writes to TOKEN, which only the owner can read.
+	 *
+	 * @param	port		TCP port, or 0 to use a Unix domain socket
+	 * @param	socket		Path of the Unix domain socket, or NULL for
+	 * 						DEFAULT_SOCKET
+	 **/
+	public CompressDaemon(int port, String socket) throws IOException {
+		privateDirectory();
+
+		if (port <= 0) {
+			Path path = (socket != null) ? Path.of(socket) : DEFAULT_SOCKET;
+			Files.deleteIfExists(path);
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(UnixDomainSocketAddress.of(path));
+			Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+			token = null;
+		} else {
+			byte[] secret = new byte[32];
+			new SecureRandom().nextBytes(secret);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : secret) {
+				hex.append(String.format("%02x", b));
+			}
+			token = hex.toString();
+
+			Files.deleteIfExists(TOKEN);
+			Files.createFile(TOKEN, PosixFilePermissions.asFileAttribute(
+				PosixFilePermissions.fromString("rw-------")));
+			Files.write(TOKEN, token.getBytes(StandardCharsets.UTF_8));
+
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		}
+
+		workers = newExecutor();
+
+		/*
+		 * The codec reports through System.out. Send each request's share of
+		 * it back to the client that asked, and anything else to stderr.
+		 */
+		output = new RequestOutput(System.err);
+		PrintStream routed = new PrintStream(output, false);
+		System.setOut(routed);
+		System.setErr(routed);
+	}
+
+
+	/**
+	 * Creates DIRECTORY if needed and makes sure only its owner can use it.
+	 **/
+	private static void privateDirectory() throws IOException {
+		if (!Files.isDirectory(DIRECTORY)) {
+			Files.createDirectories(DIRECTORY, PosixFilePermissions.asFileAttribute(
+				PosixFilePermissions.fromString("rwx------")));
+		}
+		Files.setPosixFilePermissions(DIRECTORY, PosixFilePermissions.fromString("rwx------"));
+	}
+
+
+	/**
+	 * Uses a virtual thread per connection where the runtime has them, and
+	 * a pool of reusable platform threads otherwise.
+	 **/
+	private static ExecutorService newExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		} catch (ReflectiveOperationException roe) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+
+	/**
+	 * Accepts connections until the process is killed.
+	 **/
+	public void serve() throws IOException {
+		while (true) {
+			SocketChannel client = server.accept();
+			workers.execute(() -> handle(client));
+		}
+	}
+
+
+	/**
+	 * Serves every request sent over one connection.
+	 *
+	 * Requests are single lines:
+	 * 			compress <path>
+	 * 			decompress <path>
+	 * Each gets a reply line of "ok <n>" or "failed <n>", followed by n bytes
+	 * of the output the command-line tool would have printed. On a TCP
+	 * port the first line must be "auth <token>"; otherwise the connection
+	 * is closed without reading anything else.
+	 **/
+	private void handle(SocketChannel client) {
+		try (SocketChannel c = client) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+				Channels.newInputStream(c), StandardCharsets.UTF_8));
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(c));
+
+			if (token != null) {
+				String auth = in.readLine();
+				byte[] expected = ("auth " + token).getBytes(StandardCharsets.UTF_8);
+				if (auth == null || !MessageDigest.isEqual(expected,
+						auth.getBytes(StandardCharsets.UTF_8))) {
+					out.write("denied\n".getBytes(StandardCharsets.UTF_8));
+					out.flush();
+					return;
+				}
+			}
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+
+				//A request that throws fails on its own; the daemon carries on
+				ByteArrayOutputStream log = output.begin();
+				boolean ok;
+				try {
+					ok = run(line);
+				} catch (RuntimeException re) {
+					System.out.println("Request failed: " + re);
+					ok = false;
+				} finally {
+					output.end();
+				}
+
+				out.write(((ok ? "ok " : "failed ") + log.size() + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+				log.writeTo(out);
+				out.flush();
+			}
+		} catch (IOException ioe) {
+			System.err.println("Lost connection: " + ioe.getMessage());
+		}
+	}
+
+
+	/**
+	 * Carries out a single request.
+	 **/
+	private static boolean run(String request) {
+		int split = request.indexOf(' ');
+		if (split < 0) {
+			System.out.println("Malformed request: " + request);
+			return false;
+		}
+
+		String command = request.substring(0, split);
+		String file = request.substring(split + 1);
+
+		if (command.equals("compress")) {
+			return Compress.compressFile(file);
+		} else if (command.equals("decompress")) {
+			return Decompress.decompressFile(file);
+		}
+
+		System.out.println("Unknown command: " + command);
+		return false;
+	}
+
+
+	/**
+	 * Sends writes from a thread that is serving a request into that
+	 * request's buffer. The buffer is kept and reused by the thread.
+	 **/
+	private static class RequestOutput extends OutputStream {
+		private final OutputStream fallback;
+		private final ThreadLocal<ByteArrayOutputStream> buffers;
+		private final ThreadLocal<Boolean> active;
+
+		RequestOutput(OutputStream fallback) {
+			this.fallback = fallback;
+			buffers = ThreadLocal.withInitial(() -> new ByteArrayOutputStream(4096));
+			active = ThreadLocal.withInitial(() -> Boolean.FALSE);
+		}
+
+		ByteArrayOutputStream begin() {
+			ByteArrayOutputStream buf = buffers.get();
+			buf.reset();
+			active.set(Boolean.TRUE);
+			return buf;
+		}
+
+		void end() {
+			active.set(Boolean.FALSE);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (active.get()) {
+				buffers.get().write(b);
+			} else {
+				fallback.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (active.get()) {
+				buffers.get().write(b, off, len);
+			} else {
+				fallback.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (!active.get()) {
+				fallback.flush();
+			}
+		}
+	}
+
+
+	/**
+	 * Usage:
+	 * 		java CompressDaemon [--unix <socket>]
+	 * 		java CompressDaemon --port <n>
+	 *
+	 * Without arguments the daemon listens on DEFAULT_SOCKET.
+	 **/
+	public static void main(String[] args) {
+		int port = 0;
+		String socket = null;
+
+		if (args.length >= 2 && args[0].equals("--unix")) {
+			socket = args[1];
+		} else if (args.length >= 2 && args[0].equals("--port")) {
+			port = Integer.parseInt(args[1]);
+		} else if (args.length >= 1) {
+			System.err.println("Usage: CompressDaemon [--unix <socket> | --port <n>]");
+			return;
+		}
+
+		try {
+			CompressDaemon d = new CompressDaemon(port, socket);
+			System.err.println("Listening on " + d.server.getLocalAddress());
+			d.serve();
+		} catch (IOException ioe) {
+			System.err.println("Daemon failed: " + ioe.getMessage());
+		}
+	}
+}
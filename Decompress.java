@@ -1,10 +1,23 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class Decompress {
+	private static final long MAX_PIECE = 1L << 23;	//Bits per speculative piece
+
 	private String proc;		//Bits currently being processed
 	private ByteReader data;	//Handles file read operations
 	private BST tree;			//Stores huffman codes
+	private int[] zero;			//Flattened tree: child on a 0 bit, -1 if none
+	private int[] one;			//Flattened tree: child on a 1 bit, -1 if none
+	private int[] symbol;		//Flattened tree: byte at a leaf, 256 for EOF
 
 
 	/**
@@ -98,6 +111,53 @@ public class Decompress {
 	}
 
 
+	/**
+	 * Reads the same header as readHeader(), but into plain code lengths,
+	 * without printing it or building a tree.
+	 *
+	 * @param	in	Reader at the start of the file, left after the header
+	 * @return	Code length of every byte, with EOF at index 256, or NULL
+	 * 			if the header is corrupt
+	 **/
+	public static int[] readCodeLengths(BitReader in) {
+		if (in.readBits(8) != Compress.SOH) {
+			return null;
+		}
+
+		int numCodes = in.readBits(8) + 2;
+		int[] lengths = new int[257];
+		for (int i = 0; i < numCodes; i++) {
+			//EOF comes first, as a 4-bit null byte
+			int symbol = 256;
+			if (i == 0) {
+				in.readBits(4);
+			} else {
+				symbol = in.readBits(8);
+			}
+			int length = in.readBits(8);
+			for (int left = length; left > 0; left -= Math.min(left, 24)) {
+				in.readBits(Math.min(left, 24));
+			}
+			lengths[symbol] = length;
+		}
+
+		//A header cut short reads as zeroes, which can't pass for STX
+		return (in.readBits(8) == 2) ? lengths : null;
+	}
+
+
+	/**
+	 * Reads the code table of a sized file, which follows the length.
+	 *
+	 * @return	The table, or NULL if it is corrupt
+	 **/
+	public static CodeTable readSizedTable(DataInput in) throws IOException {
+		byte[] lengths = new byte[160];
+		in.readFully(lengths);
+		return CodeTable.read(new BitReader(lengths, 0, lengths.length), 256);
+	}
+
+
 	/**
 	 * Takes a list of single-node BSTs and reconstructs the original Huffman
 	 * tree.
@@ -203,6 +263,387 @@ public class Decompress {
 	}
 
 
+	/**
+	 * Copies the rebuilt tree into plain arrays, so decoding a bit is two
+	 * array reads instead of a walk through objects and strings. Node 0 is
+	 * the root; internal nodes have symbol -1.
+	 **/
+	public void flattenTree() {
+		int size = countNodes(tree);
+		zero = new int[size];
+		one = new int[size];
+		symbol = new int[size];
+		flatten(tree, 0);
+	}
+
+
+	/**
+	 * Recursive helper for flattenTree(), not to be called manually.
+	 *
+	 * @return	The next free node index
+	 **/
+	private int flatten(BST node, int index) {
+		int next = index + 1;
+
+		if (node.getLeft() == null && node.getRight() == null) {
+			String bitstring = node.getData().getBitstring();
+			symbol[index] = bitstring.equals("0000") ? 256 : Integer.parseInt(bitstring, 2);
+			zero[index] = one[index] = -1;
+			return next;
+		}
+
+		symbol[index] = -1;
+		zero[index] = one[index] = -1;
+		if (node.getLeft() != null) {
+			zero[index] = next;
+			next = flatten(node.getLeft(), next);
+		}
+		if (node.getRight() != null) {
+			one[index] = next;
+			next = flatten(node.getRight(), next);
+		}
+		return next;
+	}
+
+
+	private static int countNodes(BST node) {
+		if (node == null) {
+			return 0;
+		}
+		return 1 + countNodes(node.getLeft()) + countNodes(node.getRight());
+	}
+
+
+	/**
+	 * Pipelined version of decode(). A reader thread fills buffers from the
+	 * compressed file while this thread walks the flattened tree, and a
+	 * writer thread drains the decoded buffers to the target file.
+	 *
+	 * @param	name	Name of the file to write to
+	 * @return	True if the end of file code was decoded and all output
+	 *			written
+	 **/
+	public boolean decodePipelined(String name) {
+		flattenTree();
+		ByteWriter bw = new ByteWriter(name + "-restored");
+
+		//Bits left over in the byte the header ended in
+		String rest = data.grabBits(data.bitsLeftInByte());
+
+		Pipeline pipe = new Pipeline(data, bw);
+		RingBuffer.Slot out = null;
+		int used = 0;
+		int node = 0;
+		boolean done = false;
+
+		try {
+			out = pipe.output().claim();
+
+			for (int i = 0; i < rest.length() && !done; i++) {
+				node = (rest.charAt(i) == '0') ? zero[node] : one[node];
+				if (node < 0) {
+					break;
+				}
+				if (symbol[node] >= 0) {
+					if (symbol[node] == 256) {
+						done = true;
+					} else {
+						out.data[used++] = (byte)symbol[node];
+					}
+					node = 0;
+				}
+			}
+
+			/*
+			 * Walk the tree bit by bit through every buffer the reader hands
+			 * over, passing on output slots as they fill.
+			 */
+			RingBuffer.Slot in;
+			while (!done && node >= 0 && out != null
+					&& (in = pipe.input().take()) != null) {
+				byte[] src = in.data;
+				for (int i = 0; i < in.length && !done && node >= 0; i++) {
+					int b = src[i];
+					for (int bit = 7; bit >= 0; bit--) {
+						node = (((b >>> bit) & 1) == 0) ? zero[node] : one[node];
+						if (node < 0) {
+							break;
+						}
+						if (symbol[node] >= 0) {
+							if (symbol[node] == 256) {
+								done = true;
+								break;
+							}
+
+							out.data[used++] = (byte)symbol[node];
+							node = 0;
+
+							if (used == out.data.length) {
+								out.length = used;
+								pipe.output().publish();
+								out = pipe.output().claim();
+								used = 0;
+								if (out == null) {
+									node = -1;
+									break;
+								}
+							}
+						}
+					}
+				}
+				pipe.input().release();
+			}
+
+			if (out != null) {
+				out.length = used;
+				pipe.output().publish();
+			}
+		} catch (InterruptedException ie) {
+			System.out.println("Interrupted while decoding.");
+		}
+
+		if (done) {
+			System.out.println("Found the null byte!");
+		} else if (out != null) {
+			System.out.println(node < 0
+				? "File is corrupted: code not in tree"
+				: "File is corrupted: no end of file code");
+		}
+
+		boolean written = pipe.finish();
+		written = bw.close() && written;
+		if (!written) {
+			System.out.println("Error writing to file.");
+		}
+		return done && written;
+	}
+
+
+	/**
+	 * Decodes the body on several threads, even though it is a single
+	 * bitstream with no block boundaries.
+	 *
+	 * The body is cut into pieces at arbitrary bits and each thread decodes
+	 * one piece from its first bit, which is usually not the start of a
+	 * code. Huffman codes tend to fall back into step after a few symbols,
+	 * so every piece records where its symbols started. Then the pieces are
+	 * joined in order: decoding carries on from where the previous piece
+	 * truly ended until it lands on a symbol start that the piece also saw.
+	 * From there the piece's own output is correct and is used as is. Only
+	 * the stretch before that point is decoded twice.
+	 *
+	 * Pieces are at most MAX_PIECE bits, and only a few per thread are
+	 * decoded ahead of the join, so memory stays bounded however large the
+	 * file is.
+	 *
+	 * @param	name	Name of the compressed file, also used for the output
+	 * @param	threads	Number of decoding threads
+	 * @return	True if the end of file code was decoded and all output
+	 *			written; false if the file is corrupt, too large to map, or
+	 *			could not be written
+	 **/
+	public boolean decodeSpeculative(String name, int threads) {
+		flattenTree();
+
+		ExecutorService pool = null;
+		ByteWriter bw = null;
+		try (FileChannel channel = new FileInputStream(name).getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				return false;
+			}
+
+			MappedByteBuffer map =
+				channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			long start = data.getBytesRead() * 8 - data.bitsLeftInByte();
+			long end = channel.size() * 8;
+
+			/*
+			 * Decode pieces from guessed starts, in parallel, a bounded
+			 * number ahead of the join
+			 */
+			int pieces = threads * 4;
+			long step = Math.min(Math.max((end - start + pieces - 1) / pieces, 1 << 16),
+				MAX_PIECE);
+			int window = threads * 2;
+			ArrayDeque<Future<Speculation>> futures = new ArrayDeque<>();
+			pool = Executors.newFixedThreadPool(threads);
+			long next = start;
+
+			/*
+			 * Join the pieces, redoing each one's prefix until it is in step
+			 */
+			bw = new ByteWriter(name + "-restored");
+			ByteArrayOutputStream fixed = new ByteArrayOutputStream();
+			long pos = start;
+			boolean done = false;
+			boolean corrupt = false;
+			boolean written = true;
+			long redone = 0;
+
+			while (!done && !corrupt && written) {
+				while (futures.size() < window && next < end) {
+					long f = next;
+					long to = Math.min(next + step, end);
+					futures.add(pool.submit(() -> new Speculation(map, f, to, end)));
+					next = to;
+				}
+				if (futures.isEmpty()) {
+					break;
+				}
+
+				Speculation piece = futures.poll().get();
+				fixed.reset();
+
+				while (true) {
+					if (pos >= piece.to || pos >= end) {
+						//Never fell into step; the whole piece was redone
+						written = bw.writeRaw(fixed.toByteArray(), 0, fixed.size());
+						break;
+					}
+
+					if (piece.isStart(pos)) {
+						int first = piece.indexOf(pos);
+						int last = (piece.eof >= 0) ? piece.eof : piece.count;
+						written = bw.writeRaw(fixed.toByteArray(), 0, fixed.size())
+							&& bw.writeRaw(piece.out, first, last - first);
+						done = (piece.eof >= 0);
+						pos = piece.next;
+						break;
+					}
+
+					//Decode one symbol from the true position
+					int node = 0;
+					do {
+						node = (bit(map, pos++) == 0) ? zero[node] : one[node];
+					} while (node >= 0 && symbol[node] < 0 && pos < end);
+					redone++;
+
+					if (node < 0 || symbol[node] < 0) {
+						System.out.println("File is corrupted: code not in tree");
+						corrupt = true;
+						break;
+					}
+					if (symbol[node] == 256) {
+						written = bw.writeRaw(fixed.toByteArray(), 0, fixed.size());
+						done = true;
+						break;
+					}
+					fixed.write(symbol[node]);
+				}
+			}
+
+			if (done) {
+				System.out.println("Found the null byte!");
+			} else if (!corrupt) {
+				System.out.println("File is corrupted: no end of file code");
+			}
+			System.out.println("Symbols decoded twice: " + redone);
+			written = bw.close() && written;
+			bw = null;
+			if (!written) {
+				System.out.println("Error writing to file.");
+			}
+			return done && written;
+		} catch (IOException | InterruptedException | ExecutionException e) {
+			System.out.println("Error decoding in parallel: " + e.getMessage());
+			return false;
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			if (bw != null) {
+				bw.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Reads a single bit of the mapped file.
+	 **/
+	private static int bit(MappedByteBuffer map, long pos) {
+		return (map.get((int)(pos >>> 3)) >>> (7 - (int)(pos & 7))) & 1;
+	}
+
+
+	/**
+	 * One piece of the body, decoded from a bit that may not be the start
+	 * of a code.
+	 **/
+	private class Speculation {
+		final long from;		//First bit of the piece
+		final long to;			//First bit of the next piece
+		final long[] starts;	//Bit set of symbol starts, relative to from
+		byte[] out;				//Decoded bytes
+		int count;				//Number of decoded bytes
+		int eof;				//Index in out where EOF was decoded, or -1
+		long next;				//First symbol start at or after to
+
+		Speculation(MappedByteBuffer map, long from, long to, long end) {
+			this.from = from;
+			this.to = to;
+			starts = new long[(int)((to - from + 63) >>> 6)];
+			out = new byte[(int)((to - from) / 8 + 16)];
+			count = 0;
+			eof = -1;
+
+			long pos = from;
+			int node = 0;
+			while (pos < end) {
+				if (node == 0) {
+					if (pos >= to) {
+						break;
+					}
+					starts[(int)((pos - from) >>> 6)] |= 1L << ((pos - from) & 63);
+				}
+
+				node = (bit(map, pos++) == 0) ? zero[node] : one[node];
+				if (node < 0) {
+					break;
+				}
+				if (symbol[node] >= 0) {
+					if (symbol[node] == 256) {
+						eof = count;
+						break;
+					}
+					if (count == out.length) {
+						out = Arrays.copyOf(out,
+							(int)Math.min(out.length * 2L, Integer.MAX_VALUE - 8));
+					}
+					out[count++] = (byte)symbol[node];
+					node = 0;
+				}
+			}
+			next = pos;
+		}
+
+		/**
+		 * True if this piece saw a symbol start at pos.
+		 **/
+		boolean isStart(long pos) {
+			long rel = pos - from;
+			if (rel < 0 || pos >= to) {
+				return false;
+			}
+			return (starts[(int)(rel >>> 6)] & (1L << (rel & 63))) != 0;
+		}
+
+		/**
+		 * Index in out of the symbol starting at pos.
+		 **/
+		int indexOf(long pos) {
+			long rel = pos - from;
+			int index = 0;
+			int word = (int)(rel >>> 6);
+			for (int i = 0; i < word; i++) {
+				index += Long.bitCount(starts[i]);
+			}
+			index += Long.bitCount(starts[word] & ((1L << (rel & 63)) - 1));
+			return index;
+		}
+	}
+
+
 	/**
 	 * Clears the bitstring currently being processed. Simple helper function,
 	 * keeps code cleaner.
@@ -220,19 +661,236 @@ public class Decompress {
 	}
 
 
-	public static void main(String[] args) {
+	/**
+	 * Restores a compressed file to file-restored.
+	 *
+	 * @param	file	Name of the file to decompress
+	 * @return	True if the file was restored
+	 **/
+	public static boolean decompressFile(String file) {
+		return decompressFile(file, 1);
+	}
+
+
+	/**
+	 * Restores a compressed file to file-restored, decoding on several
+	 * threads if asked to.
+	 *
+	 * @param	file	Name of the file to decompress
+	 * @param	threads	Number of decoding threads
+	 * @return	True if the file was restored
+	 **/
+	public static boolean decompressFile(String file, int threads) {
+		if (isBlockFile(file)) {
+			return decompressBlocks(file) && restoreSegments(file);
+		}
+		if (isSizedFile(file)) {
+			return decompressSized(file);
+		}
+
 		/*
 		 * Load target file for processing. Quit if it doesn't load.
 		 */
-		Decompress d = new Decompress(args[0]);
+		Decompress d = new Decompress(file);
 		if(d.data.loadFailure()) {
-			return;
+			return false;
 		}
 
 		//Attempt to read the header and rebuild the original Huffman tree
-		d.rebuildTree(d.readHeader());
+		LinkedList<BST> leaves = d.readHeader();
+		if (leaves == null) {
+			d.data.close();
+			return false;
+		}
+		d.rebuildTree(leaves);
+
+		/*
+		 * Convert all codes back to their original bitstrings. Files too
+		 * large to map are decoded by the pipeline whatever was asked for.
+		 */
+		boolean decoded;
+		if (threads > 1 && new File(file).length() <= Integer.MAX_VALUE) {
+			decoded = d.decodeSpeculative(file, threads);
+		} else {
+			decoded = d.decodePipelined(file);
+		}
+		d.data.close();
+
+		return decoded && restoreSegments(file);
+	}
+
+
+	/**
+	 * Restores anything added later with Append onto the end of
+	 * file-restored.
+	 *
+	 * @param	file	Name of the decompressed file
+	 * @return	True if there were no segments, or all were restored
+	 **/
+	private static boolean restoreSegments(String file) {
+		Append segments = new Append(file, "r");
+		if (segments.loadFailure()) {
+			return false;
+		}
+		boolean restored = segments.restore(file + "-restored");
+		segments.close();
+		return restored;
+	}
+
+
+	/**
+	 * Check if a file was written by Compress.compressBlocks.
+	 **/
+	private static boolean isBlockFile(String file) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == BlockWriter.MAGIC;
+		} catch (IOException ioe) {
+			//Too short or missing; the legacy path reports it
+			return false;
+		}
+	}
+
+
+	/**
+	 * Check if a file was written by Compress.compressSized.
+	 **/
+	private static boolean isSizedFile(String file) {
+		try (InputStream in = new FileInputStream(file)) {
+			return in.read() == Compress.SIZED;
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * Restores a file in the sized format to file-restored.
+	 *
+	 * The length in the header sizes the output up front. It is written
+	 * with positional writes into a file already at its final length, a
+	 * chunk at a time, and the decode loop runs for exactly that many
+	 * symbols with no end marker to test for. A code that matches nothing
+	 * is only checked for once per chunk.
+	 *
+	 * The codes are mapped, so the body must be under 2 GB.
+	 *
+	 * @param	file	Name of the file to decompress
+	 * @return	True if the file was restored
+	 **/
+	public static boolean decompressSized(String file) {
+		long starttime = System.currentTimeMillis();
+
+		try (FileChannel channel = new FileInputStream(file).getChannel();
+				RandomAccessFile target = new RandomAccessFile(file + "-restored", "rw")) {
+			/*
+			 * Header: marker, length, 160 bytes of code lengths
+			 */
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+				java.nio.channels.Channels.newInputStream(channel.position(1))));
+			long size = Varint.read(in);
+			long header = 1 + Varint.size(size) + 160;
+			if (size < 0 || header > channel.size()) {
+				System.out.println("Header corrupt: file too short");
+				return false;
+			}
+			CodeTable table = readSizedTable(in);
+			if (table == null) {
+				return false;
+			}
+
+			long body = channel.size() - header;
+			if (body > Integer.MAX_VALUE - 8) {
+				System.out.println("File too large to map");
+				return false;
+			}
+			//Every code is at least a bit, so a larger length is a lie
+			if (size > body * 8) {
+				System.out.println("Header corrupt: length exceeds the codes");
+				return false;
+			}
+			byte[] codes = new byte[(int)body];
+			channel.map(FileChannel.MapMode.READ_ONLY, header, body).get(codes);
+
+			/*
+			 * Decode exactly size symbols, a chunk at a time
+			 */
+			target.setLength(size);
+			FileChannel output = target.getChannel();
+			BitReader bits = new BitReader(codes, 0, codes.length);
+			byte[] chunk = new byte[1 << 20];
+			java.nio.ByteBuffer wrapped = java.nio.ByteBuffer.wrap(chunk);
+
+			for (long done = 0; done < size; ) {
+				int n = (int)Math.min(chunk.length, size - done);
+				int bad = 0;
+				for (int i = 0; i < n; i++) {
+					int symbol = table.decode(bits);
+					bad |= symbol;
+					chunk[i] = (byte)symbol;
+				}
+				if (bad < 0) {
+					System.out.println("File is corrupted: code not in table");
+					return false;
+				}
+
+				wrapped.clear().limit(n);
+				while (wrapped.hasRemaining()) {
+					output.write(wrapped, done + wrapped.position());
+				}
+				done += n;
+			}
 
-		//Convert all codes back to their original bitstrings
-		d.decode(args[0]);
+			if (bits.position() > body * 8) {
+				System.out.println("File is corrupted: codes end early");
+				return false;
+			}
+		} catch (IOException ioe) {
+			System.out.println("Failed restoring file: " + ioe.getMessage());
+			return false;
+		}
+
+		long exectime = System.currentTimeMillis() - starttime;
+		System.out.println("Execution time: " + exectime + "ms");
+		return true;
+	}
+
+
+	/**
+	 * Restores a file of blocks to file-restored.
+	 *
+	 * @param	file	Name of the file to decompress
+	 * @return	True if the file was restored
+	 **/
+	public static boolean decompressBlocks(String file) {
+		long starttime = System.currentTimeMillis();
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file));
+				OutputStream out = new BufferedOutputStream(
+					new FileOutputStream(file + "-restored"))) {
+			in.skipNBytes(4);
+			if (!new BlockReader(in).readAll(out)) {
+				return false;
+			}
+		} catch (IOException ioe) {
+			System.out.println("Failed restoring blocks: " + ioe.getMessage());
+			return false;
+		}
+
+		long exectime = System.currentTimeMillis() - starttime;
+		System.out.println("Execution time: " + exectime + "ms");
+		return true;
+	}
+
+
+	/**
+	 * Usage:
+	 * 		java Decompress [-j threads] <file.011>
+	 **/
+	public static void main(String[] args) {
+		if (args.length >= 3 && args[0].equals("-j")) {
+			decompressFile(args[2], Integer.parseInt(args[1]));
+		} else {
+			decompressFile(args[0]);
+		}
 	}
 }
\ No newline at end of file
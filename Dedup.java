@@ -0,0 +1,422 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class Dedup {
+	public static final int MAGIC = 0x30313144;	//"011D"
+
+	/*
+	 * Chunk sizes. Below AVG_SIZE a cut needs more hash bits to be zero,
+	 * above it fewer, which keeps chunk sizes close to the average.
+	 */
+	private static final int MIN_SIZE = 2 * 1024;
+	private static final int AVG_SIZE = 8 * 1024;
+	private static final int MAX_SIZE = 64 * 1024;
+	private static final long MASK_HARD = 0xFFFE000000000000L;	//15 bits
+	private static final long MASK_EASY = 0xFFE0000000000000L;	//11 bits
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		//Fixed seed: chunk boundaries must not change between runs
+		Random r = new Random(0x011);
+		for (int i = 0; i < 256; i++) {
+			GEAR[i] = r.nextLong();
+		}
+	}
+
+	private MessageDigest digest;			//Chunk identity
+	private Map<ByteBuffer, Integer> index;	//Digest -> chunk id
+	private List<Integer> lengths;			//Length of each unique chunk
+	private BlockWriter blocks;				//Coder for unique chunk bytes
+	private byte[] staging;					//Unique bytes waiting for a block
+	private int staged;
+	private long totalBytes;				//Bytes seen
+	private long uniqueBytes;				//Bytes actually coded
+
+
+	/**
+	 * Starts a deduplicating archive. Files are cut into content-defined
+	 * chunks with a Gear rolling hash, so an insertion only changes the
+	 * chunks around it. A chunk seen before, in any file of the same
+	 * archive, is stored once and referred to by its id; only new chunks
+	 * reach the Huffman coder. Each archive stands alone: chunks are not
+	 * shared with other archives.
+	 *
+	 * The archive is laid out as:
+	 * 			"011D"   blocks   index   index offset   "011D"
+	 * The blocks hold the unique chunks back to back. The index lists the
+	 * chunk lengths, then each file's name and chunk ids, all as varints.
+	 * The index offset is 8 bytes.
+	 **/
+	private Dedup(OutputStream out) throws NoSuchAlgorithmException {
+		digest = MessageDigest.getInstance("SHA-256");
+		index = new HashMap<>();
+		lengths = new ArrayList<>();
+		blocks = new BlockWriter(out);
+		staging = new byte[BlockWriter.BLOCK_SIZE];
+		staged = 0;
+		totalBytes = uniqueBytes = 0;
+	}
+
+
+	/**
+	 * Finds the length of the next chunk starting at start.
+	 *
+	 * @param	buf		Data
+	 * @param	start	Start of the chunk
+	 * @param	end		End of the available data
+	 * @return	Length of the chunk
+	 **/
+	public static int cut(byte[] buf, int start, int end) {
+		int n = end - start;
+		if (n <= MIN_SIZE) {
+			return n;
+		}
+
+		int normal = Math.min(AVG_SIZE, n);
+		int limit = Math.min(MAX_SIZE, n);
+		long hash = 0;
+		int i = MIN_SIZE;
+
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[buf[start + i] & 0xFF];
+			if ((hash & MASK_HARD) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < limit; i++) {
+			hash = (hash << 1) + GEAR[buf[start + i] & 0xFF];
+			if ((hash & MASK_EASY) == 0) {
+				return i + 1;
+			}
+		}
+
+		return limit;
+	}
+
+
+	/**
+	 * Chunks one file and returns the ids of its chunks.
+	 **/
+	private List<Integer> add(Path file) throws IOException {
+		List<Integer> refs = new ArrayList<>();
+		byte[] buf = new byte[4 * MAX_SIZE];
+		int start = 0;
+		int end = 0;
+		boolean eof = false;
+
+		try (InputStream in = Files.newInputStream(file)) {
+			while (true) {
+				/*
+				 * Keep at least MAX_SIZE bytes ahead unless the file is done
+				 */
+				if (!eof && end - start < MAX_SIZE) {
+					System.arraycopy(buf, start, buf, 0, end - start);
+					end -= start;
+					start = 0;
+					int n = in.readNBytes(buf, end, buf.length - end);
+					end += n;
+					eof = (end < buf.length);
+				}
+				if (start == end) {
+					break;
+				}
+
+				int length = cut(buf, start, end);
+				refs.add(chunk(buf, start, length));
+				start += length;
+			}
+		}
+
+		return refs;
+	}
+
+
+	/**
+	 * Looks a chunk up, storing it if it is new.
+	 *
+	 * @return	The chunk's id
+	 **/
+	private int chunk(byte[] buf, int offset, int length) throws IOException {
+		totalBytes += length;
+		digest.update(buf, offset, length);
+		ByteBuffer key = ByteBuffer.wrap(digest.digest());
+
+		Integer id = index.get(key);
+		if (id != null) {
+			return id;
+		}
+
+		id = lengths.size();
+		index.put(key, id);
+		lengths.add(length);
+		uniqueBytes += length;
+
+		/*
+		 * Queue the bytes for coding, a full block at a time
+		 */
+		while (length > 0) {
+			int n = Math.min(length, staging.length - staged);
+			System.arraycopy(buf, offset, staging, staged, n);
+			staged += n;
+			offset += n;
+			length -= n;
+			if (staged == staging.length) {
+				blocks.write(staging, 0, staged);
+				staged = 0;
+			}
+		}
+
+		return id;
+	}
+
+
+	/**
+	 * Writes an archive of every file under the given paths.
+	 *
+	 * @return	True if the archive was written
+	 **/
+	public static boolean pack(String archive, String[] paths) {
+		List<Path> files = new ArrayList<>();
+		List<String> names = new ArrayList<>();
+
+		try {
+			for (String p : paths) {
+				Path root = Path.of(p);
+				Path base = Files.isDirectory(root) ? root : root.getParent();
+				try (Stream<Path> walk = Files.walk(root)) {
+					for (Path f : walk.filter(Files::isRegularFile).sorted()
+							.collect(Collectors.toList())) {
+						files.add(f);
+						names.add((base == null) ? f.toString()
+							: base.relativize(f).toString());
+					}
+				}
+			}
+		} catch (IOException ioe) {
+			System.out.println("Unable to list files: " + ioe.getMessage());
+			return false;
+		}
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(archive)))) {
+			out.writeInt(MAGIC);
+			Dedup d = new Dedup(out);
+
+			List<List<Integer>> recipes = new ArrayList<>();
+			for (Path f : files) {
+				recipes.add(d.add(f));
+			}
+			if (d.staged > 0) {
+				d.blocks.write(d.staging, 0, d.staged);
+			}
+			d.blocks.finish();
+
+			/*
+			 * Index after the blocks, then where to find it
+			 */
+			long indexOffset = 4 + d.blocks.getWritten();
+			ByteArrayOutputStream idx = new ByteArrayOutputStream();
+			Varint.write(idx, d.lengths.size());
+			for (int length : d.lengths) {
+				Varint.write(idx, length);
+			}
+			Varint.write(idx, files.size());
+			for (int i = 0; i < files.size(); i++) {
+				byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+				Varint.write(idx, name.length);
+				idx.write(name);
+				Varint.write(idx, recipes.get(i).size());
+				for (int id : recipes.get(i)) {
+					Varint.write(idx, id);
+				}
+			}
+			idx.writeTo(out);
+			out.writeLong(indexOffset);
+			out.writeInt(MAGIC);
+			out.flush();
+
+			System.out.println(files.size() + " files, " + d.totalBytes + " bytes, "
+				+ d.uniqueBytes + " unique in " + d.lengths.size() + " chunks");
+			System.out.println("Dedup ratio: "
+				+ (double)d.totalBytes / Math.max(d.uniqueBytes, 1));
+		} catch (IOException | NoSuchAlgorithmException e) {
+			System.out.println("Couldn't write archive: " + e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Checks the magic at both ends of an archive and reads where its
+	 * index starts.
+	 *
+	 * @param	in	The archive
+	 * @return	Offset of the index, or -1 if the file is not an intact
+	 * 			dedup archive
+	 **/
+	public static long readIndexOffset(RandomAccessFile in) throws IOException {
+		if (in.length() < 16) {
+			return -1;
+		}
+		in.seek(0);
+		int head = in.readInt();
+		in.seek(in.length() - 12);
+		long indexOffset = in.readLong();
+		int tail = in.readInt();
+
+		if (head != MAGIC || tail != MAGIC
+				|| indexOffset < 4 || indexOffset > in.length() - 12) {
+			return -1;
+		}
+		return indexOffset;
+	}
+
+
+	/**
+	 * Reads the chunk lengths at the start of the index.
+	 *
+	 * @param	in		Archive positioned at the index
+	 * @param	store	Length of the decoded chunk store
+	 * @return	Where each chunk starts in the store, plus the store's end
+	 **/
+	public static long[] readChunks(DataInput in, long store) throws IOException {
+		long chunks = Varint.read(in);
+		if (chunks < 0 || chunks > store) {
+			throw new IOException("bad chunk count");
+		}
+		long[] offsets = new long[(int)chunks + 1];
+		for (int i = 0; i < chunks; i++) {
+			long length = Varint.read(in);
+			if (length <= 0 || length > MAX_SIZE) {
+				throw new IOException("bad chunk length");
+			}
+			offsets[i + 1] = offsets[i] + length;
+		}
+		if (offsets[(int)chunks] != store) {
+			throw new IOException("chunks don't match the store");
+		}
+		return offsets;
+	}
+
+
+	/**
+	 * Restores every file in an archive under a directory.
+	 *
+	 * The unique chunks are decoded once to a scratch file, then each file
+	 * is put together from its chunk ids.
+	 *
+	 * @return	True if every file was restored
+	 **/
+	public static boolean unpack(String archive, String target) {
+		File scratch = null;
+
+		try (RandomAccessFile in = new RandomAccessFile(archive, "r")) {
+			long indexOffset = readIndexOffset(in);
+			if (indexOffset < 0) {
+				System.out.println("File is corrupted or not a dedup archive");
+				return false;
+			}
+
+			/*
+			 * Decode the chunk store
+			 */
+			scratch = File.createTempFile("011dedup", ".chunks");
+			try (OutputStream store = new BufferedOutputStream(new FileOutputStream(scratch));
+					InputStream blocks = new BufferedInputStream(
+						new FileInputStream(archive))) {
+				blocks.skipNBytes(4);
+				if (!new BlockReader(blocks).readAll(store)) {
+					return false;
+				}
+			}
+
+			/*
+			 * Read the index and rebuild each file
+			 */
+			in.seek(indexOffset);
+			long[] offsets = readChunks(in, scratch.length());
+			int chunks = offsets.length - 1;
+
+			try (RandomAccessFile store = new RandomAccessFile(scratch, "r")) {
+				byte[] copy = new byte[MAX_SIZE];
+				int count = (int)Varint.read(in);
+
+				for (int f = 0; f < count; f++) {
+					long nameLength = Varint.read(in);
+					if (nameLength < 0 || nameLength > in.length()) {
+						throw new IOException("bad name length");
+					}
+					byte[] name = new byte[(int)nameLength];
+					in.readFully(name);
+					Path out = Path.of(target, new String(name, StandardCharsets.UTF_8))
+						.normalize();
+					if (!out.startsWith(Path.of(target).normalize())) {
+						System.out.println("Archive corrupt: file outside target");
+						return false;
+					}
+					if (out.getParent() != null) {
+						Files.createDirectories(out.getParent());
+					}
+
+					long refs = Varint.read(in);
+					try (OutputStream o = new BufferedOutputStream(Files.newOutputStream(out))) {
+						for (long r = 0; r < refs; r++) {
+							long chunk = Varint.read(in);
+							if (chunk < 0 || chunk >= chunks) {
+								throw new IOException("chunk id out of range");
+							}
+							int id = (int)chunk;
+							int length = (int)(offsets[id + 1] - offsets[id]);
+							store.seek(offsets[id]);
+							store.readFully(copy, 0, length);
+							o.write(copy, 0, length);
+						}
+					}
+				}
+				System.out.println("Restored " + count + " files");
+			}
+		} catch (IOException ioe) {
+			System.out.println("Failed restoring archive: " + ioe.getMessage());
+			return false;
+		} finally {
+			if (scratch != null) {
+				scratch.delete();
+			}
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Usage:
+	 * 		java Dedup c <archive> <file|directory>...
+	 * 		java Dedup x <archive> <directory>
+	 **/
+	public static void main(String[] args) {
+		if (args.length >= 3 && args[0].equals("c")) {
+			String[] paths = new String[args.length - 2];
+			System.arraycopy(args, 2, paths, 0, paths.length);
+			pack(args[1], paths);
+		} else if (args.length >= 3 && args[0].equals("x")) {
+			unpack(args[1], args[2]);
+		} else {
+			System.out.println("Usage: Dedup c <archive> <path>... | x <archive> <dir>");
+		}
+	}
+}
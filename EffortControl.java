@@ -0,0 +1,119 @@
+public class EffortControl {
+	/*
+	 * Effort levels, lightest first: block type, LZ level, name, and a
+	 * starting guess at the coding time in nanoseconds per byte
+	 */
+	private static final int[] MODES = {
+		BlockWriter.STORED, BlockWriter.HUFFMAN, BlockWriter.LZ,
+		BlockWriter.LZ, BlockWriter.BWT
+	};
+	private static final int[] LEVELS = {0, 0, 1, Lz.DEFAULT_LEVEL, 0};
+	private static final String[] NAMES = {"stored", "huffman", "lz1", "lz6", "bwt"};
+	private static final double[] GUESS = {1, 8, 40, 90, 400};
+
+	private static final double MARGIN = 0.8;	//Share of the time left to plan for
+
+	private long deadline;			//System.nanoTime() to be done by
+	private long total;				//Bytes to code in all
+	private long done;				//Bytes coded so far
+	private double[] cost;			//Measured nanoseconds per byte, per level
+	private long[] blocks;			//Blocks coded at each level
+	private long[] bytes;			//Bytes coded at each level
+
+
+	/**
+	 * Creates a controller that picks the effort of each block so a job
+	 * finishes in time. Before every block it works out how much time per
+	 * byte is left, and picks the heaviest level that has been coding
+	 * faster than that. Each level's speed is measured from the blocks it
+	 * codes, so the choice follows the data and the machine.
+	 *
+	 * Only MARGIN of the time left is planned for, which leaves room for
+	 * reading, writing and blocks slower than measured.
+	 *
+	 * @param	total	Bytes the job will code
+	 * @param	nanos	Time allowed, from now
+	 **/
+	public EffortControl(long total, long nanos) {
+		this.total = total;
+		deadline = System.nanoTime() + nanos;
+		done = 0;
+		cost = GUESS.clone();
+		blocks = new long[MODES.length];
+		bytes = new long[MODES.length];
+	}
+
+
+	/**
+	 * Creates a controller for a target throughput.
+	 *
+	 * @param	total	Bytes the job will code
+	 * @param	rate	Megabytes per second to keep up
+	 **/
+	public static EffortControl forRate(long total, double rate) {
+		return new EffortControl(total, (long)(total / (rate * 1e6) * 1e9));
+	}
+
+
+	/**
+	 * Picks the level for the next block.
+	 *
+	 * @return	The level, an index for getMode() and getLevel()
+	 **/
+	public int choose() {
+		long left = total - done;
+		if (left <= 0) {
+			return 0;
+		}
+
+		double budget = (deadline - System.nanoTime()) * MARGIN / left;
+		for (int k = MODES.length - 1; k > 0; k--) {
+			if (cost[k] <= budget) {
+				return k;
+			}
+		}
+		return 0;
+	}
+
+
+	/**
+	 * Records how long a block took. The first measurement of a level
+	 * replaces its guess, and after that the estimate moves halfway to
+	 * each new one.
+	 **/
+	public void record(int choice, int length, long nanos) {
+		if (length > 0) {
+			double measured = (double)nanos / length;
+			cost[choice] = (bytes[choice] == 0)
+				? measured : (cost[choice] + measured) / 2;
+		}
+		done += length;
+		blocks[choice]++;
+		bytes[choice] += length;
+	}
+
+
+	public int getMode(int choice) {
+		return MODES[choice];
+	}
+
+
+	public int getLevel(int choice) {
+		return LEVELS[choice];
+	}
+
+
+	/**
+	 * One line per level used: blocks, bytes and measured speed.
+	 **/
+	public String report() {
+		StringBuilder s = new StringBuilder();
+		for (int k = 0; k < MODES.length; k++) {
+			if (blocks[k] > 0) {
+				s.append(String.format("%-8s %5d blocks %12d bytes %8.1f MB/s%n",
+					NAMES[k], blocks[k], bytes[k], 1e3 / cost[k]));
+			}
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,221 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+public class FlowCompressor extends FlowStage {
+	private byte[] pending;			//Input not yet coded
+	private int pendingLength;
+	private ByteArrayOutputStream sink;	//Output of the coder
+	private BlockWriter blocks;
+	private boolean started;		//MAGIC has been sent
+
+
+	/**
+	 * Creates a processor that turns a stream of byte buffers into a file
+	 * of blocks, the same as Compress -m huffman would write. Input is
+	 * gathered into BLOCK_SIZE chunks, each coded as one block on the
+	 * executor and passed on as one buffer.
+	 *
+	 * @param	executor	Where coding runs
+	 **/
+	public FlowCompressor(Executor executor) {
+		this(executor, BlockWriter.HUFFMAN, Lz.DEFAULT_LEVEL);
+	}
+
+
+	/**
+	 * Creates a processor that tries a particular kind of block first.
+	 *
+	 * @param	executor	Where coding runs
+	 * @param	mode		Block type to try, e.g. BlockWriter.LZ
+	 * @param	level		Effort for LZ blocks
+	 **/
+	public FlowCompressor(Executor executor, int mode, int level) {
+		super(executor);
+		pending = new byte[BlockWriter.BLOCK_SIZE];
+		pendingLength = 0;
+		sink = new ByteArrayOutputStream();
+		blocks = new BlockWriter(sink, mode, level);
+		started = false;
+	}
+
+
+	@Override
+	protected void accept(ByteBuffer input) {
+		int n = input.remaining();
+		if (pendingLength + n > pending.length) {
+			pending = Arrays.copyOf(pending, Math.max(pendingLength + n, pending.length * 2));
+		}
+		input.get(pending, pendingLength, n);
+		pendingLength += n;
+	}
+
+
+	@Override
+	protected byte[] take(boolean eof) {
+		int n = Math.min(pendingLength, BlockWriter.BLOCK_SIZE);
+		if (n == 0 || (n < BlockWriter.BLOCK_SIZE && !eof)) {
+			return null;
+		}
+
+		byte[] unit = Arrays.copyOf(pending, n);
+		System.arraycopy(pending, n, pending, 0, pendingLength - n);
+		pendingLength -= n;
+		return unit;
+	}
+
+
+	@Override
+	protected List<ByteBuffer> code(byte[] unit) throws IOException {
+		start();
+		blocks.write(unit, 0, unit.length);
+		return drainSink();
+	}
+
+
+	@Override
+	protected List<ByteBuffer> finish() throws IOException {
+		start();
+		blocks.finish();
+		return drainSink();
+	}
+
+
+	private void start() throws IOException {
+		if (!started) {
+			new DataOutputStream(sink).writeInt(BlockWriter.MAGIC);
+			started = true;
+		}
+	}
+
+
+	private List<ByteBuffer> drainSink() {
+		List<ByteBuffer> output = new ArrayList<>();
+		output.add(ByteBuffer.wrap(sink.toByteArray()));
+		sink.reset();
+		return output;
+	}
+
+
+	/**
+	 * Compresses a file through a FlowCompressor, reading it in small
+	 * buffers. The publisher blocks when the compressor falls behind, so
+	 * memory stays bounded however large the file is.
+	 *
+	 * Usage: FlowCompressor file
+	 * Writes file.011, a file of blocks.
+	 **/
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.out.println("Usage: java FlowCompressor file");
+			return;
+		}
+
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		FlowCompressor compressor = new FlowCompressor(pool);
+		FileSink target = new FileSink(args[0] + ".011");
+		compressor.subscribe(target);
+
+		try (SubmissionPublisher<ByteBuffer> source = new SubmissionPublisher<>(pool, 4);
+				InputStream in = new FileInputStream(args[0])) {
+			source.subscribe(compressor);
+			byte[] chunk = new byte[1 << 16];
+			int n;
+			while ((n = in.read(chunk)) > 0) {
+				source.submit(ByteBuffer.wrap(Arrays.copyOf(chunk, n)));
+			}
+		}
+
+		boolean ok = target.await();
+		pool.shutdown();
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * Subscriber that writes every buffer to a file, asking for one at a
+	 * time.
+	 **/
+	static class FileSink implements Flow.Subscriber<ByteBuffer> {
+		private final String file;
+		private OutputStream out;
+		private Flow.Subscription subscription;
+		private boolean done;
+		private boolean ok;
+
+		FileSink(String file) {
+			this.file = file;
+		}
+
+		public void onSubscribe(Flow.Subscription s) {
+			subscription = s;
+			try {
+				out = new BufferedOutputStream(new FileOutputStream(file));
+			} catch (IOException e) {
+				s.cancel();
+				end(e);
+				return;
+			}
+			s.request(1);
+		}
+
+		public void onNext(ByteBuffer item) {
+			try {
+				out.write(item.array(), item.arrayOffset() + item.position(), item.remaining());
+			} catch (IOException e) {
+				subscription.cancel();
+				end(e);
+				return;
+			}
+			subscription.request(1);
+		}
+
+		public void onError(Throwable t) {
+			end(t);
+		}
+
+		public void onComplete() {
+			end(null);
+		}
+
+		private synchronized void end(Throwable t) {
+			if (done) {
+				return;
+			}
+			try {
+				if (out != null) {
+					out.close();
+				}
+			} catch (IOException e) {
+				t = (t == null) ? e : t;
+			}
+			if (t != null) {
+				System.out.println("Error writing " + file + ": " + t);
+			}
+			ok = (t == null);
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits for the stream to end.
+		 *
+		 * @return	True if it completed without error
+		 **/
+		synchronized boolean await() throws InterruptedException {
+			while (!done) {
+				wait();
+			}
+			return ok;
+		}
+	}
+}
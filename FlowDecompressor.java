@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+
+public class FlowDecompressor extends FlowStage {
+	private byte[] pending;			//Input not yet decoded
+	private int pendingLength;
+	private boolean started;		//MAGIC has been checked
+	private boolean ended;			//END has been seen
+	private ByteArrayInputStream unit;	//Block being decoded
+	private BlockReader blocks;
+
+
+	/**
+	 * Creates a processor that turns a file of blocks, as a stream of byte
+	 * buffers, back into the original bytes. Each block is passed on as
+	 * one buffer once all of its packed bytes have arrived, so no more
+	 * than one block is held at a time. Anything after the end marker is
+	 * ignored.
+	 *
+	 * @param	executor	Where decoding runs
+	 **/
+	public FlowDecompressor(Executor executor) {
+		super(executor);
+		pending = new byte[1 << 16];
+		pendingLength = 0;
+		started = false;
+		ended = false;
+
+		//The reader keeps the previous table, so it is fed one block at a time
+		blocks = new BlockReader(new InputStream() {
+			public int read() {
+				return unit.read();
+			}
+			public int read(byte[] b, int off, int len) {
+				return unit.read(b, off, len);
+			}
+		});
+	}
+
+
+	@Override
+	protected void accept(ByteBuffer input) {
+		if (ended) {
+			return;
+		}
+		int n = input.remaining();
+		if (pendingLength + n > pending.length) {
+			pending = Arrays.copyOf(pending, Math.max(pendingLength + n, pending.length * 2));
+		}
+		input.get(pending, pendingLength, n);
+		pendingLength += n;
+	}
+
+
+	/**
+	 * Takes the next whole block, header included.
+	 **/
+	@Override
+	protected byte[] take(boolean eof) throws IOException {
+		if (ended) {
+			return null;
+		}
+
+		DataInputStream in = new DataInputStream(
+			new ByteArrayInputStream(pending, 0, pendingLength));
+		int length;
+		try {
+			if (!started) {
+				if (in.readInt() != BlockWriter.MAGIC) {
+					throw new IOException("not a file of blocks");
+				}
+				started = true;
+				consume(4);
+				in = new DataInputStream(new ByteArrayInputStream(pending, 0, pendingLength));
+			}
+
+			int type = in.readUnsignedByte();
+			if (type == BlockWriter.END) {
+				consume(1);
+				ended = true;
+				return null;
+			}
+			Varint.read(in);
+			long packedLength = Varint.read(in);
+			long header = pendingLength - in.available();
+			if (packedLength > Integer.MAX_VALUE - header) {
+				throw new IOException("block length out of range");
+			}
+			length = (int)(header + packedLength);
+		} catch (EOFException e) {
+			length = -1;
+		}
+
+		if (length < 0 || length > pendingLength) {
+			if (eof) {
+				throw new EOFException("stream ends inside a block");
+			}
+			return null;
+		}
+
+		byte[] block = Arrays.copyOf(pending, length);
+		consume(length);
+		return block;
+	}
+
+
+	private void consume(int n) {
+		System.arraycopy(pending, n, pending, 0, pendingLength - n);
+		pendingLength -= n;
+	}
+
+
+	@Override
+	protected List<ByteBuffer> code(byte[] block) throws IOException {
+		unit = new ByteArrayInputStream(block);
+		byte[] raw = blocks.read();
+		if (raw == null) {
+			throw new IOException("corrupt block");
+		}
+
+		List<ByteBuffer> output = new ArrayList<>();
+		output.add(ByteBuffer.wrap(raw));
+		return output;
+	}
+
+
+	@Override
+	protected List<ByteBuffer> finish() throws IOException {
+		if (!ended) {
+			throw new EOFException("stream ends before the end marker");
+		}
+		return new ArrayList<>();
+	}
+
+
+	/**
+	 * Decompresses a file of blocks through a FlowDecompressor.
+	 *
+	 * Usage: FlowDecompressor file.011
+	 * Writes file.011-restored.
+	 **/
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.out.println("Usage: java FlowDecompressor file.011");
+			return;
+		}
+
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		FlowDecompressor decompressor = new FlowDecompressor(pool);
+		FlowCompressor.FileSink target = new FlowCompressor.FileSink(args[0] + "-restored");
+		decompressor.subscribe(target);
+
+		try (SubmissionPublisher<ByteBuffer> source = new SubmissionPublisher<>(pool, 4);
+				InputStream in = new FileInputStream(args[0])) {
+			source.subscribe(decompressor);
+			byte[] chunk = new byte[1 << 16];
+			int n;
+			while ((n = in.read(chunk)) > 0) {
+				source.submit(ByteBuffer.wrap(Arrays.copyOf(chunk, n)));
+			}
+		}
+
+		boolean ok = target.await();
+		pool.shutdown();
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public abstract class FlowStage implements Flow.Processor<ByteBuffer, ByteBuffer> {
+	private static final int MAX_READY = 2;		//Coded buffers waiting for demand
+
+	private final Executor executor;			//Runs the coding
+	private final AtomicInteger wip;			//Signals not yet handled by drain()
+	private final ArrayDeque<ByteBuffer> ready;	//Output waiting for demand
+
+	private Flow.Subscription upstream;
+	private Flow.Subscriber<? super ByteBuffer> downstream;
+	private long demand;			//Buffers downstream has asked for
+	private boolean requested;		//A buffer has been asked of upstream
+	private boolean working;		//A coding task is running
+	private boolean inputDone;		//Upstream completed
+	private boolean tailAdded;		//finish() output is queued
+	private boolean terminated;		//onComplete or onError sent, or cancelled
+	private Throwable failure;
+
+
+	/**
+	 * Base of a coding stage between a publisher and a subscriber of byte
+	 * buffers.
+	 *
+	 * Buffering is bounded everywhere. Upstream is asked for one buffer at
+	 * a time, and only while the stage has less than a unit of input and
+	 * fewer than MAX_READY coded buffers waiting. Coding happens one unit
+	 * at a time on the given executor, and only while there is room for
+	 * its output. So a slow subscriber slows the coder, which in turn
+	 * stops asking upstream for more.
+	 *
+	 * All signals go through drain(), which only one thread runs at a
+	 * time, so the subscriber never sees overlapping calls.
+	 *
+	 * @param	executor	Where coding runs
+	 **/
+	protected FlowStage(Executor executor) {
+		this.executor = executor;
+		wip = new AtomicInteger();
+		ready = new ArrayDeque<>();
+	}
+
+
+	/**
+	 * Stores a buffer from upstream. Called with the stage locked.
+	 **/
+	protected abstract void accept(ByteBuffer input) throws Exception;
+
+
+	/**
+	 * Takes the next unit of input to code, if there is a whole one.
+	 * Called with the stage locked.
+	 *
+	 * @param	eof		True once upstream has completed, when a partial
+	 * 					unit should be taken too
+	 * @return	The unit, or NULL if there isn't one
+	 **/
+	protected abstract byte[] take(boolean eof) throws Exception;
+
+
+	/**
+	 * Codes one unit. Runs on the executor, one call at a time.
+	 *
+	 * @return	Output buffers, possibly none
+	 **/
+	protected abstract List<ByteBuffer> code(byte[] unit) throws Exception;
+
+
+	/**
+	 * Output that goes after everything else, once all input is coded.
+	 * Runs on the executor.
+	 **/
+	protected abstract List<ByteBuffer> finish() throws Exception;
+
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		synchronized (this) {
+			if (downstream != null) {
+				subscriber.onSubscribe(new Flow.Subscription() {
+					public void request(long n) {}
+					public void cancel() {}
+				});
+				subscriber.onError(new IllegalStateException("already subscribed"));
+				return;
+			}
+			downstream = subscriber;
+		}
+
+		subscriber.onSubscribe(new Flow.Subscription() {
+			public void request(long n) {
+				synchronized (FlowStage.this) {
+					if (n <= 0) {
+						fail(new IllegalArgumentException("request must be positive"));
+					} else {
+						demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+					}
+				}
+				drain();
+			}
+
+			public void cancel() {
+				Flow.Subscription up;
+				synchronized (FlowStage.this) {
+					terminated = true;
+					ready.clear();
+					up = upstream;
+				}
+				if (up != null) {
+					up.cancel();
+				}
+			}
+		});
+		drain();
+	}
+
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		synchronized (this) {
+			if (upstream != null) {
+				subscription.cancel();
+				return;
+			}
+			upstream = subscription;
+		}
+		drain();
+	}
+
+
+	@Override
+	public void onNext(ByteBuffer item) {
+		synchronized (this) {
+			requested = false;
+			if (!terminated) {
+				try {
+					accept(item);
+				} catch (Exception e) {
+					fail(e);
+				}
+			}
+		}
+		drain();
+	}
+
+
+	@Override
+	public void onError(Throwable t) {
+		synchronized (this) {
+			fail(t);
+		}
+		drain();
+	}
+
+
+	@Override
+	public void onComplete() {
+		synchronized (this) {
+			inputDone = true;
+		}
+		drain();
+	}
+
+
+	private void fail(Throwable t) {
+		if (failure == null) {
+			failure = t;
+		}
+	}
+
+
+	/**
+	 * Does whatever the current state allows: deliver, start coding, ask
+	 * for input, or end the stream. A call made while another thread is
+	 * draining is left to that thread, which loops again.
+	 **/
+	private void drain() {
+		if (wip.getAndIncrement() != 0) {
+			return;
+		}
+
+		int missed = 1;
+		do {
+			while (true) {
+				ByteBuffer next = null;
+				Throwable error = null;
+				boolean complete = false;
+				boolean askUpstream = false;
+				byte[] unit = null;
+				boolean tail = false;
+				Flow.Subscriber<? super ByteBuffer> out;
+
+				synchronized (this) {
+					out = downstream;
+					if (terminated || out == null || upstream == null) {
+						break;
+					}
+
+					if (failure != null) {
+						terminated = true;
+						error = failure;
+					} else if (demand > 0 && !ready.isEmpty()) {
+						demand--;
+						next = ready.poll();
+					} else if (tailAdded && ready.isEmpty() && !working) {
+						terminated = true;
+						complete = true;
+					} else if (!working && ready.size() < MAX_READY && !tailAdded) {
+						try {
+							unit = take(inputDone);
+						} catch (Exception e) {
+							fail(e);
+							continue;
+						}
+						if (unit != null || inputDone) {
+							working = true;
+							tail = (unit == null);
+						} else if (!requested) {
+							requested = true;
+							askUpstream = true;
+						} else {
+							break;
+						}
+					} else {
+						break;
+					}
+				}
+
+				if (error != null) {
+					upstream.cancel();
+					out.onError(error);
+				} else if (next != null) {
+					out.onNext(next);
+				} else if (complete) {
+					out.onComplete();
+				} else if (askUpstream) {
+					upstream.request(1);
+				} else {
+					run(unit, tail);
+				}
+			}
+
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+
+	/**
+	 * Codes a unit, or the tail, on the executor and queues the output.
+	 **/
+	private void run(byte[] unit, boolean tail) {
+		Runnable task = () -> {
+			List<ByteBuffer> output = null;
+			Throwable error = null;
+			try {
+				output = tail ? finish() : code(unit);
+			} catch (Throwable t) {
+				error = t;
+			}
+
+			synchronized (this) {
+				working = false;
+				if (error != null) {
+					fail(error);
+				} else if (!terminated) {
+					for (ByteBuffer b : output) {
+						if (b.hasRemaining()) {
+							ready.add(b);
+						}
+					}
+					tailAdded |= tail;
+				}
+			}
+			drain();
+		};
+
+		try {
+			executor.execute(task);
+		} catch (RuntimeException rejected) {
+			synchronized (this) {
+				working = false;
+				fail(rejected);
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+import java.util.Arrays;
+
+public class Histogram {
+	private int[] t0;			//Four interleaved tables of 256 counters.
+	private int[] t1;			//Separate arrays, so the JIT can see every
+	private int[] t2;			//masked byte index is in bounds
+	private int[] t3;
+	private long[] totals;		//Folded counts
+
+
+	/**
+	 * Returns an empty byte histogram.
+	 *
+	 * Counting into a single table stalls on runs of the same byte, since
+	 * each increment has to wait for the previous store to the same counter.
+	 * Consecutive bytes here go to different tables, so a run keeps four
+	 * independent increments in flight. The tables are summed by fold().
+	 **/
+	public Histogram() {
+		t0 = new int[256];
+		t1 = new int[256];
+		t2 = new int[256];
+		t3 = new int[256];
+		totals = new long[256];
+	}
+
+
+	/**
+	 * Counts every byte in a region. The int counters are folded into the
+	 * long totals before returning, so they cannot overflow.
+	 *
+	 * @param	data	Bytes to count
+	 * @param	offset	Start of the region
+	 * @param	length	Number of bytes, less than 2^31
+	 **/
+	public void add(byte[] data, int offset, int length) {
+		int[] c0 = t0;
+		int[] c1 = t1;
+		int[] c2 = t2;
+		int[] c3 = t3;
+		int i = offset;
+		int end = offset + length;
+
+		for (; i + 7 < end; i += 8) {
+			c0[data[i] & 0xFF]++;
+			c1[data[i + 1] & 0xFF]++;
+			c2[data[i + 2] & 0xFF]++;
+			c3[data[i + 3] & 0xFF]++;
+			c0[data[i + 4] & 0xFF]++;
+			c1[data[i + 5] & 0xFF]++;
+			c2[data[i + 6] & 0xFF]++;
+			c3[data[i + 7] & 0xFF]++;
+		}
+		for (; i < end; i++) {
+			c0[data[i] & 0xFF]++;
+		}
+
+		fold();
+	}
+
+
+	/**
+	 * Moves the sub-histogram counts into the totals.
+	 **/
+	private void fold() {
+		for (int b = 0; b < 256; b++) {
+			totals[b] += (long)t0[b] + t1[b] + t2[b] + t3[b];
+			t0[b] = t1[b] = t2[b] = t3[b] = 0;
+		}
+	}
+
+
+	/**
+	 * Number of times a byte value has been seen.
+	 **/
+	public long get(int value) {
+		return totals[value];
+	}
+
+
+	/**
+	 * All 256 counts. The array is live; copy it to keep a snapshot.
+	 **/
+	public long[] counts() {
+		return totals;
+	}
+
+
+	/**
+	 * Forgets all counts.
+	 **/
+	public void clear() {
+		Arrays.fill(totals, 0);
+	}
+}
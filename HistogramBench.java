@@ -0,0 +1,66 @@
+import java.util.Random;
+
+public class HistogramBench {
+	public static void main(String[] args) {
+		int size = 1 << 26;
+		byte[] random = new byte[size];
+		new Random(11).nextBytes(random);
+
+		/*
+		 * Runs of 64 to 4096 identical bytes, like zero padding or sparse dumps
+		 */
+		byte[] runs = new byte[size];
+		Random r = new Random(11);
+		for (int i = 0; i < size; ) {
+			int len = Math.min(64 + r.nextInt(4032), size - i);
+			byte value = (r.nextInt(4) == 0) ? (byte)r.nextInt(256) : 0;
+			for (int j = 0; j < len; j++) {
+				runs[i + j] = value;
+			}
+			i += len;
+		}
+
+		for (int round = 0; round < 5; round++) {
+			System.out.println("Round " + round);
+			report("  single, random", single(random), size);
+			report("  split,  random", split(random), size);
+			report("  single, runs  ", single(runs), size);
+			report("  split,  runs  ", split(runs), size);
+		}
+	}
+
+
+	/**
+	 * Counting the way findFrequencies used to, one table.
+	 **/
+	private static long single(byte[] data) {
+		long starttime = System.nanoTime();
+		long[] counts = new long[256];
+		for (int i = 0; i < data.length; i++) {
+			counts[data[i] & 0xFF]++;
+		}
+		if (counts[0] < 0) {
+			System.out.println("unreachable");
+		}
+		return System.nanoTime() - starttime;
+	}
+
+
+	private static long split(byte[] data) {
+		long starttime = System.nanoTime();
+		Histogram h = new Histogram();
+		for (int i = 0; i < data.length; i += 1 << 16) {
+			h.add(data, i, Math.min(1 << 16, data.length - i));
+		}
+		if (h.get(0) < 0) {
+			System.out.println("unreachable");
+		}
+		return System.nanoTime() - starttime;
+	}
+
+
+	private static void report(String name, long nanos, int bytes) {
+		System.out.println(name + ": " + (nanos / 1000000) + "ms, "
+			+ String.format("%.2f", (double)bytes / nanos) + " GB/s");
+	}
+}
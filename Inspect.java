@@ -0,0 +1,435 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+public class Inspect {
+	private static final String[] TYPES = {
+		"stored", "huffman", "bigram", "order1", "lz", "bwt", "rle", "repeat", "delta"
+	};
+	private static final int LEGACY_HEADER = 1 << 14;	//Longest original header
+
+	private static final AtomicInteger failures = new AtomicInteger();
+
+	private String name;
+	private RandomAccessFile file;
+	private StringBuilder json;
+
+
+	/**
+	 * Describes one compressed file from its headers alone: the format,
+	 * its tables and, for files of blocks, every block. Payloads are
+	 * skipped, never decoded, so a file takes a few reads whatever its
+	 * size. The headers are read with the same code the decoders use.
+	 **/
+	private Inspect(String name, RandomAccessFile file) {
+		this.name = name;
+		this.file = file;
+		json = new StringBuilder();
+	}
+
+
+	/**
+	 * Report on a file as a JSON object. A file that can't be read or
+	 * described gets an error field instead, whatever went wrong, and is
+	 * counted as a failure.
+	 **/
+	public static String inspect(String name) {
+		StringBuilder out = new StringBuilder();
+		out.append("{\"file\":").append(quote(name));
+
+		try (RandomAccessFile file = new RandomAccessFile(name, "r")) {
+			Inspect i = new Inspect(name, file);
+			out.append(",\"bytes\":").append(file.length());
+			i.describe();
+			out.append(i.json);
+		} catch (EOFException eofe) {
+			failures.incrementAndGet();
+			out.append(",\"error\":\"file ends early\"");
+		} catch (IOException ioe) {
+			failures.incrementAndGet();
+			out.append(",\"error\":").append(quote(String.valueOf(ioe.getMessage())));
+		} catch (RuntimeException re) {
+			failures.incrementAndGet();
+			out.append(",\"error\":").append(quote(re.toString()));
+		}
+
+		return out.append("}").toString();
+	}
+
+
+	/**
+	 * Works out the format from the first bytes and describes the rest.
+	 **/
+	private void describe() throws IOException {
+		long size = file.length();
+		int magic = (size >= 4) ? file.readInt() : 0;
+		file.seek(0);
+		int first = (size >= 1) ? file.readUnsignedByte() : -1;
+
+		if (magic == BlockWriter.MAGIC) {
+			json.append(",\"format\":\"blocks\"");
+			appended(4, true);
+		} else if (magic == Dedup.MAGIC) {
+			json.append(",\"format\":\"dedup\"");
+			dedup();
+		} else if (magic == RecordArchive.MAGIC) {
+			json.append(",\"format\":\"records\"");
+			records(size);
+		} else if (first == Compress.SIZED) {
+			json.append(",\"format\":\"sized\"");
+			sized(size);
+		} else if (first == Compress.SOH) {
+			json.append(",\"format\":\"original\"");
+			appended(0, false);
+		} else {
+			json.append(",\"format\":\"unknown\"");
+		}
+	}
+
+
+	/**
+	 * Sized format: the length and table are in the header, so the ratio
+	 * and average code length are exact.
+	 **/
+	private void sized(long size) throws IOException {
+		file.seek(1);
+		long raw = Varint.read(file);
+		CodeTable table = Decompress.readSizedTable(file);
+		if (table == null) {
+			throw new IOException("bad code table");
+		}
+		long body = size - file.getFilePointer();
+
+		json.append(",\"raw\":").append(raw);
+		json.append(",\"ratio\":").append(ratio(size, raw));
+		json.append(",\"tableBytes\":160");
+		json.append(",\"bitsPerByte\":").append(ratio(body * 8, raw));
+		json.append(",\"lengths\":").append(distribution(lengths(table, 256)));
+		json.append(",\"entropyGap\":").append(gap(lengths(table, 256)));
+	}
+
+
+	/**
+	 * Dedup archive: the chunk store is a run of blocks, followed by the
+	 * index, which starts with the length of every unique chunk.
+	 **/
+	private void dedup() throws IOException {
+		long index = Dedup.readIndexOffset(file);
+		if (index < 0) {
+			throw new IOException("trailer corrupt");
+		}
+		long raw = blocks(json, 4, index);
+
+		file.seek(index);
+		long[] chunks = Dedup.readChunks(file, raw);
+		json.append(",\"chunks\":").append(chunks.length - 1);
+	}
+
+
+	/**
+	 * Record archive: one table for every record, and an index of where
+	 * each starts and how long it was.
+	 **/
+	private void records(long size) throws IOException {
+		RecordArchive archive = new RecordArchive(name);
+		if (archive.loadFailure()) {
+			throw new IOException("index corrupt");
+		}
+		int[] lengths = lengths(archive.getTable(), 256);
+		long raw = archive.rawLength();
+		json.append(",\"records\":").append(archive.size());
+		archive.close();
+
+		json.append(",\"raw\":").append(raw);
+		json.append(",\"ratio\":").append(ratio(size, raw));
+		json.append(",\"lengths\":").append(distribution(lengths));
+		json.append(",\"entropyGap\":").append(gap(lengths));
+	}
+
+
+	/**
+	 * A file that may have had segments added with Append: its own
+	 * payload, then each segment, which is a file of blocks.
+	 *
+	 * @param	start	Where the payload starts
+	 * @param	isBlocks	True if the payload is blocks, false if it is in
+	 * 					the original format
+	 **/
+	private void appended(long start, boolean isBlocks) throws IOException {
+		Append footer = new Append(name, "r");
+		if (footer.loadFailure()) {
+			throw new IOException("footer corrupt");
+		}
+		List<Long> segments = new ArrayList<>(footer.getSegments());
+		long stop = footer.getFooterStart();
+		footer.close();
+
+		long end = segments.isEmpty() ? stop : segments.get(0);
+		if (isBlocks) {
+			blocks(json, start, end);
+		} else {
+			original(end);
+		}
+
+		if (!segments.isEmpty()) {
+			json.append(",\"segments\":[");
+			for (int s = 0; s < segments.size(); s++) {
+				long next = (s + 1 < segments.size()) ? segments.get(s + 1) : stop;
+				json.append((s > 0) ? "," : "").append("{\"offset\":").append(segments.get(s));
+				blocks(json, segments.get(s), next);
+				json.append("}");
+			}
+			json.append("]");
+		}
+	}
+
+
+	/**
+	 * Original format: the header lists a code per byte, plus the EOF
+	 * code. The original length is not stored, so there is no ratio.
+	 *
+	 * @param	end		Where the codes stop
+	 **/
+	private void original(long end) throws IOException {
+		if (end < 2) {
+			throw new IOException("header corrupt");
+		}
+		byte[] header = new byte[(int)Math.min(end, LEGACY_HEADER)];
+		file.seek(0);
+		file.readFully(header);
+		BitReader in = new BitReader(header, 0, header.length);
+
+		int[] lengths = Decompress.readCodeLengths(in);
+		if (lengths == null) {
+			throw new IOException("header corrupt");
+		}
+		lengths = Arrays.copyOf(lengths, 256);
+
+		json.append(",\"tableBytes\":").append((in.position() + 7) / 8);
+		json.append(",\"codeBits\":").append(end * 8 - in.position());
+		json.append(",\"lengths\":").append(distribution(lengths));
+		json.append(",\"entropyGap\":").append(gap(lengths));
+	}
+
+
+	/**
+	 * Walks the blocks between two offsets with BlockReader.skip(), which
+	 * reads each block's header and tables.
+	 *
+	 * @return	Original size of the blocks
+	 **/
+	private long blocks(StringBuilder out, long start, long end) throws IOException {
+		long raw = 0;
+		long packed = 0;
+		long tables = 0;
+		int count = 0;
+		StringBuilder list = new StringBuilder();
+
+		try (FileInputStream in = new FileInputStream(name)) {
+			in.getChannel().position(start);
+			BlockReader reader = new BlockReader(new BufferedInputStream(in));
+
+			long at = start;
+			BlockReader.Header block;
+			while ((block = reader.skip()) != null) {
+				long next = at + 1 + Varint.size(block.raw) + Varint.size(block.packed)
+					+ block.packed;
+				if (next > end) {
+					throw new IOException("block at " + at + " runs past the end");
+				}
+
+				list.append((count > 0) ? "," : "");
+				list.append("{\"type\":\"").append(TYPES[block.type]).append("\"");
+				list.append(",\"offset\":").append(at);
+				list.append(",\"raw\":").append(block.raw);
+				list.append(",\"packed\":").append(block.packed);
+				list.append(",\"ratio\":").append(ratio(block.packed, block.raw));
+				if (block.table != null) {
+					int[] lengths = lengths(block.table, 256);
+					list.append(",\"lengths\":").append(distribution(lengths));
+					list.append(",\"entropyGap\":").append(gap(lengths));
+				}
+				list.append(",\"tableBytes\":").append((block.tableBits + 7) / 8);
+				list.append("}");
+
+				raw += block.raw;
+				packed += block.packed;
+				tables += (block.tableBits + 7) / 8;
+				count++;
+				at = next;
+			}
+			if (reader.isCorrupt()) {
+				throw new IOException("block at " + at + " is corrupt");
+			}
+		}
+
+		out.append(",\"raw\":").append(raw);
+		out.append(",\"ratio\":").append(ratio(packed, raw));
+		out.append(",\"tableBytes\":").append(tables);
+		out.append(",\"blocks\":[").append(list).append("]");
+		return raw;
+	}
+
+
+	private static int[] lengths(CodeTable table, int symbols) {
+		int[] lengths = new int[symbols];
+		for (int s = 0; s < symbols; s++) {
+			lengths[s] = table.getLength(s);
+		}
+		return lengths;
+	}
+
+
+	/**
+	 * Number of symbols with each code length, as a JSON array indexed by
+	 * length. Entry 0 counts the symbols with no code.
+	 **/
+	private static String distribution(int[] lengths) {
+		int longest = 0;
+		for (int l : lengths) {
+			longest = Math.max(longest, l);
+		}
+		int[] count = new int[longest + 1];
+		for (int l : lengths) {
+			count[l]++;
+		}
+
+		StringBuilder s = new StringBuilder("[");
+		for (int l = 0; l <= longest; l++) {
+			s.append((l > 0) ? "," : "").append(count[l]);
+		}
+		return s.append("]").toString();
+	}
+
+
+	/**
+	 * Estimated bits per byte a Huffman code loses to whole-bit code
+	 * lengths, from the lengths alone. The loss is at most p + 0.086,
+	 * where p is the chance of the likeliest symbol (Gallager), and a
+	 * shortest code of length l means p is about 2^-l.
+	 **/
+	private static String gap(int[] lengths) {
+		int shortest = Integer.MAX_VALUE;
+		for (int l : lengths) {
+			if (l > 0) {
+				shortest = Math.min(shortest, l);
+			}
+		}
+		if (shortest == Integer.MAX_VALUE) {
+			return "null";
+		}
+		return String.format(Locale.ROOT, "%.3f", Math.min(1, Math.pow(2, -shortest) + 0.086));
+	}
+
+
+	private static String ratio(long a, long b) {
+		return (b == 0) ? "null" : String.format(Locale.ROOT, "%.4f", (double)a / b);
+	}
+
+
+	private static String quote(String s) {
+		StringBuilder q = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				q.append('\\').append(c);
+			} else if (c < 0x20) {
+				q.append(String.format("\\u%04x", (int)c));
+			} else {
+				q.append(c);
+			}
+		}
+		return q.append("\"").toString();
+	}
+
+
+	/**
+	 * Usage:
+	 * 		java Inspect [-j threads] <file or directory>...
+	 *
+	 * Prints a JSON array with one object per file, in the order given.
+	 * Directories are searched for .011 files. Files are inspected on
+	 * several threads, all of the machine's cores by default. Exits with
+	 * status 1 if any file could not be inspected.
+	 *
+	 * Every object has the file name, its size in bytes and its format.
+	 * Where known, it also has:
+	 *	raw			Original size in bytes
+	 *	ratio		Compressed size over original size
+	 *	tableBytes	Bytes spent on code tables
+	 *	lengths		Number of symbols per code length, index 0 for no code
+	 *	entropyGap	Estimated bits per byte lost to whole-bit codes
+	 *	blocks		The same for every block, with its type and offset
+	 *	chunks		Unique chunks in a dedup archive
+	 *	records		Records in a record archive
+	 **/
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int arg = 0;
+		if (args.length >= 2 && args[0].equals("-j")) {
+			threads = Integer.parseInt(args[1]);
+			arg = 2;
+		}
+		if (arg >= args.length) {
+			System.out.println("Usage: Inspect [-j threads] <file or directory>...");
+			return;
+		}
+
+		List<String> files = new ArrayList<>();
+		for (; arg < args.length; arg++) {
+			Path path = Paths.get(args[arg]);
+			if (!Files.isDirectory(path)) {
+				files.add(args[arg]);
+				continue;
+			}
+			try (Stream<Path> walk = Files.walk(path)) {
+				walk.filter(p -> p.toString().endsWith(".011") && Files.isRegularFile(p))
+					.sorted()
+					.forEach(p -> files.add(p.toString()));
+			} catch (IOException ioe) {
+				System.out.println("Unable to read directory: " + ioe.getMessage());
+				return;
+			}
+		}
+
+		//The readers report problems on System.out; keep them out of the JSON
+		PrintStream out = new PrintStream(new BufferedOutputStream(System.out), false);
+		System.setOut(System.err);
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<String>> reports = new ArrayList<>();
+		for (String f : files) {
+			reports.add(pool.submit(() -> inspect(f)));
+		}
+		pool.shutdown();
+
+		out.println("[");
+		try {
+			for (int i = 0; i < reports.size(); i++) {
+				out.print(reports.get(i).get());
+				out.println((i + 1 < reports.size()) ? "," : "");
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			out.flush();
+			System.err.println("Inspection failed: " + e.getMessage());
+			System.exit(1);
+		}
+		out.println("]");
+		out.flush();
+
+		if (failures.get() > 0) {
+			System.err.println(failures.get() + " file(s) could not be inspected");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,381 @@
+import java.util.Arrays;
+
+public class Lz {
+	public static final int MIN_MATCH = 4;			//Shorter repeats stay literals
+	public static final int MAX_MATCH = 1 << 16;	//Longest single match
+	public static final int WINDOW = 1 << 20;		//Farthest a match can reach back
+	public static final int SLOTS = 40;				//Slots for values below 2^20
+	public static final int DEFAULT_LEVEL = 6;
+	public static final int OPTIMAL_LEVEL = 10;		//Parsed by OptimalParser
+	public static final int MAX_LEVEL = 10;
+
+	private static final int HASH_BITS = 16;
+
+	/*
+	 * Per level: hash chain steps, length that ends the search early, and
+	 * whether to check the next position for a longer match first.
+	 */
+	private static final int[][] LEVELS = {
+		{0, 0, 0},
+		{4, 16, 0},
+		{8, 32, 0},
+		{16, 32, 0},
+		{16, 64, 1},
+		{32, 128, 1},
+		{64, 128, 1},
+		{256, 258, 1},
+		{1024, 1024, 1},
+		{4096, MAX_MATCH, 1},
+		{64, 128, 1}			//Starting parse for OptimalParser
+	};
+
+	private int chain;				//Chain steps for this level
+	private int nice;				//Good enough match length
+	private boolean lazy;			//Check one position ahead
+	private OptimalParser optimal;	//Only on OPTIMAL_LEVEL
+
+	private int[] head;				//Hash -> last position with that hash
+	private int[] prev;				//Position -> previous one with the same hash
+
+	/*
+	 * The parsed block. A length of 0 is a literal, whose byte is in
+	 * tokenValue; otherwise tokenValue is the match distance.
+	 */
+	int[] tokenLength;
+	int[] tokenValue;
+	int tokens;
+
+	private int matchDistance;		//Set by findMatch
+
+
+	/**
+	 * Creates an LZ77 coder. Each block is parsed into literals and
+	 * matches against earlier data in the same block, found through hash
+	 * chains over four-byte prefixes. The parse is then Huffman coded with
+	 * two tables: one for literals and match lengths, one for distances.
+	 *
+	 * Lengths and distances are coded as a slot followed by extra bits; see
+	 * slot(). Higher levels follow the hash chains further and look one
+	 * position ahead before taking a match, so they are slower but find
+	 * longer matches. OPTIMAL_LEVEL picks the parse by cost instead; see
+	 * OptimalParser. Decoding speed doesn't depend on the level.
+	 *
+	 * @param	level	Effort, 1 to MAX_LEVEL
+	 **/
+	public Lz(int level) {
+		level = Math.max(1, Math.min(level, MAX_LEVEL));
+		chain = LEVELS[level][0];
+		nice = LEVELS[level][1];
+		lazy = LEVELS[level][2] != 0;
+		optimal = (level == OPTIMAL_LEVEL) ? new OptimalParser() : null;
+
+		head = new int[1 << HASH_BITS];
+		prev = new int[WINDOW];
+		tokenLength = new int[0];
+		tokenValue = new int[0];
+	}
+
+
+	/**
+	 * Slot of a length or distance value. Values below 4 have their own
+	 * slot; above that, each power of two is split into two slots by the
+	 * bit below the top one, and the remaining bits are sent as is.
+	 **/
+	static int slot(int value) {
+		if (value < 4) {
+			return value;
+		}
+		int top = 31 - Integer.numberOfLeadingZeros(value);
+		return 2 * top + ((value >>> (top - 1)) & 1);
+	}
+
+
+	static int extraBits(int slot) {
+		return (slot < 4) ? 0 : (slot >> 1) - 1;
+	}
+
+
+	static int slotBase(int slot) {
+		return (slot < 4) ? slot : (2 | (slot & 1)) << extraBits(slot);
+	}
+
+
+	/**
+	 * Encodes a region as an LZ block:
+	 * 			literal/length lengths   distance lengths   codes
+	 * A literal/length symbol below 256 is a literal byte. Otherwise it is
+	 * 256 + the slot of (length - MIN_MATCH), followed by its extra bits,
+	 * the distance slot of (distance - 1), and that slot's extra bits.
+	 **/
+	public void encode(byte[] src, int offset, int length, BitWriter out) {
+		if (optimal != null) {
+			optimal.parse(this, src, offset, length);
+		} else {
+			parse(src, offset, length);
+		}
+		writeTokens(out);
+	}
+
+
+	/**
+	 * Parses a region greedily, or lazily on higher levels.
+	 **/
+	void parse(byte[] src, int offset, int length) {
+		int end = offset + length;
+		reserve(length);
+		Arrays.fill(head, -1);
+
+		int i = offset;
+		while (i < end) {
+			int len = findMatch(src, offset, i, end);
+			int dist = matchDistance;
+
+			if (lazy && len >= MIN_MATCH && len < nice && i + 1 < end) {
+				insert(src, offset, i, end);
+				int next = findMatch(src, offset, i + 1, end);
+				if (next > len) {
+					addLiteral(src[i]);
+					i++;
+					len = next;
+					dist = matchDistance;
+				}
+			}
+
+			if (len < MIN_MATCH) {
+				insert(src, offset, i, end);
+				addLiteral(src[i]);
+				i++;
+				continue;
+			}
+
+			addMatch(len, dist);
+			for (int stop = i + len; i < stop; i++) {
+				insert(src, offset, i, end);
+			}
+		}
+	}
+
+
+	/**
+	 * Looks for the longest earlier match of the bytes at pos, without
+	 * adding pos to the chains.
+	 *
+	 * @return	Length of the match, 0 if there is none; the distance is
+	 * 			left in matchDistance
+	 **/
+	private int findMatch(byte[] src, int base, int pos, int end) {
+		if (pos + MIN_MATCH > end) {
+			return 0;
+		}
+
+		int limit = Math.min(end - pos, MAX_MATCH);
+		int best = 0;
+		int candidate = head[hash(src, pos)];
+		int steps = chain;
+
+		while (candidate >= 0 && steps-- > 0) {
+			int at = base + candidate;
+			if (pos - at > WINDOW) {
+				break;
+			}
+
+			if (src[at + best] == src[pos + best]) {
+				int n = 0;
+				while (n < limit && src[at + n] == src[pos + n]) {
+					n++;
+				}
+				if (n > best) {
+					best = n;
+					matchDistance = pos - at;
+					if (n >= nice || n == limit) {
+						break;
+					}
+				}
+			}
+
+			int older = prev[candidate & (WINDOW - 1)];
+			if (older >= candidate) {
+				break;
+			}
+			candidate = older;
+		}
+
+		return (best >= MIN_MATCH) ? best : 0;
+	}
+
+
+	/**
+	 * Adds a position to the hash chains. Insertion is idempotent for the
+	 * most recent position, as the lazy check may insert it early.
+	 **/
+	private void insert(byte[] src, int base, int pos, int end) {
+		if (pos + MIN_MATCH > end) {
+			return;
+		}
+		int h = hash(src, pos);
+		int rel = pos - base;
+		if (head[h] == rel) {
+			return;
+		}
+		prev[rel & (WINDOW - 1)] = head[h];
+		head[h] = rel;
+	}
+
+
+	private static int hash(byte[] src, int pos) {
+		int v = (src[pos] & 0xFF) | (src[pos + 1] & 0xFF) << 8
+			| (src[pos + 2] & 0xFF) << 16 | (src[pos + 3] & 0xFF) << 24;
+		return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+
+
+	/**
+	 * Makes room for a block's worth of tokens and empties the list.
+	 **/
+	void reserve(int length) {
+		if (tokenLength.length < length) {
+			tokenLength = new int[length];
+			tokenValue = new int[length];
+		}
+		tokens = 0;
+	}
+
+
+	void addLiteral(byte b) {
+		tokenLength[tokens] = 0;
+		tokenValue[tokens++] = b & 0xFF;
+	}
+
+
+	void addMatch(int length, int distance) {
+		tokenLength[tokens] = length;
+		tokenValue[tokens++] = distance;
+	}
+
+
+	/**
+	 * Builds the literal/length and distance tables for the parsed tokens.
+	 *
+	 * @return	The two tables, in that order
+	 **/
+	CodeTable[] buildTables() {
+		long[] litCounts = new long[256 + SLOTS];
+		long[] distCounts = new long[SLOTS];
+		for (int t = 0; t < tokens; t++) {
+			if (tokenLength[t] == 0) {
+				litCounts[tokenValue[t]]++;
+			} else {
+				litCounts[256 + slot(tokenLength[t] - MIN_MATCH)]++;
+				distCounts[slot(tokenValue[t] - 1)]++;
+			}
+		}
+
+		return new CodeTable[] {
+			CodeTable.fromCounts(litCounts), CodeTable.fromCounts(distCounts)
+		};
+	}
+
+
+	/**
+	 * Writes the parsed tokens as a block.
+	 **/
+	void writeTokens(BitWriter out) {
+		CodeTable[] tables = buildTables();
+		CodeTable literals = tables[0];
+		CodeTable distances = tables[1];
+		literals.write(out);
+		distances.write(out);
+
+		for (int t = 0; t < tokens; t++) {
+			if (tokenLength[t] == 0) {
+				literals.encode(out, tokenValue[t]);
+			} else {
+				writeValue(out, literals, 256, tokenLength[t] - MIN_MATCH);
+				writeValue(out, distances, 0, tokenValue[t] - 1);
+			}
+		}
+	}
+
+
+	private static void writeValue(BitWriter out, CodeTable table, int first, int value) {
+		int s = slot(value);
+		table.encode(out, first + s);
+		int extra = extraBits(s);
+		if (extra > 0) {
+			out.writeBits(value - slotBase(s), extra);
+		}
+	}
+
+
+	/**
+	 * Reads the tables at the start of an LZ block.
+	 *
+	 * @return	The literal and length table, then the distance table, or
+	 * 			NULL if either is corrupt
+	 **/
+	public static CodeTable[] readTables(BitReader in) {
+		CodeTable literals = CodeTable.read(in, 256 + SLOTS);
+		if (literals == null) {
+			return null;
+		}
+		CodeTable distances = CodeTable.read(in, SLOTS);
+		if (distances == null) {
+			return null;
+		}
+		return new CodeTable[] {literals, distances};
+	}
+
+
+	/**
+	 * Decodes an LZ block into raw.
+	 *
+	 * @return	False if the block is corrupt
+	 **/
+	public static boolean decode(BitReader in, byte[] raw) {
+		CodeTable[] tables = readTables(in);
+		if (tables == null) {
+			return false;
+		}
+		CodeTable literals = tables[0];
+		CodeTable distances = tables[1];
+
+		int pos = 0;
+		while (pos < raw.length) {
+			int symbol = literals.decode(in);
+			if (symbol < 0) {
+				return false;
+			}
+			if (symbol < 256) {
+				raw[pos++] = (byte)symbol;
+				continue;
+			}
+
+			int s = symbol - 256;
+			int length = slotBase(s) + in.readBits(extraBits(s)) + MIN_MATCH;
+			s = distances.decode(in);
+			if (s < 0) {
+				return false;
+			}
+			int distance = slotBase(s) + in.readBits(extraBits(s)) + 1;
+			if (distance > pos || length > raw.length - pos) {
+				return false;
+			}
+
+			/*
+			 * Overlapping copies repeat the bytes just written, so only
+			 * whole distance-sized pieces can be copied at once
+			 */
+			int from = pos - distance;
+			if (distance >= length) {
+				System.arraycopy(raw, from, raw, pos, length);
+				pos += length;
+			} else {
+				for (int stop = pos + length; pos < stop; pos++) {
+					raw[pos] = raw[pos - distance];
+				}
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,293 @@
+import java.util.Arrays;
+
+public class OptimalParser {
+	private static final int NICE = 128;		//Matches this long are extended directly
+	private static final int DEPTH = 48;		//Tree nodes visited per position
+	private static final int PASSES = 3;		//Parse/table rounds
+	private static final int UNUSED = 20;		//Price of a symbol with no code yet
+	private static final int HASH_BITS = 16;
+
+	private int[] head;				//Hash -> latest position, root of its tree
+	private int[] son;				//Two children per position in the window
+
+	/*
+	 * Every match found, grouped by position: matches at position i are
+	 * matchFirst[i] .. matchFirst[i + 1] - 1, longest last.
+	 */
+	private int[] matchFirst;
+	private int[] matchLength;
+	private int[] matchDistance;
+
+	private int[] price;			//Cheapest bits to reach each position
+	private int[] fromLength;		//Step that reached it: 0 for a literal
+	private int[] fromDistance;
+
+
+	/**
+	 * Creates a parser that chooses literals and matches by dynamic
+	 * programming rather than greedily. The price of every choice comes
+	 * from the code lengths of the tables the block will actually be
+	 * written with, so the parse and the tables are refined together over
+	 * a few passes, starting from a normal lazy parse.
+	 *
+	 * Matches come from a binary tree of the earlier positions sharing a
+	 * hash, which finds the longest match of every length in one descent.
+	 *
+	 * The output is an ordinary LZ block, decoded at the usual speed.
+	 **/
+	public OptimalParser() {
+		head = new int[1 << HASH_BITS];
+		son = new int[2 * Lz.WINDOW];
+		matchFirst = new int[0];
+		matchLength = new int[1 << 16];
+		matchDistance = new int[1 << 16];
+		price = new int[0];
+		fromLength = new int[0];
+		fromDistance = new int[0];
+	}
+
+
+	/**
+	 * Fills lz's token list with a near-optimal parse of a region.
+	 **/
+	public void parse(Lz lz, byte[] src, int offset, int length) {
+		if (price.length < length + 1) {
+			matchFirst = new int[length + 1];
+			price = new int[length + 1];
+			fromLength = new int[length + 1];
+			fromDistance = new int[length + 1];
+		}
+
+		findMatches(src, offset, length);
+
+		lz.parse(src, offset, length);
+		for (int pass = 0; pass < PASSES; pass++) {
+			CodeTable[] tables = lz.buildTables();
+			choose(lz, src, offset, length, tables[0], tables[1]);
+		}
+	}
+
+
+	/**
+	 * Records the matches at every position of the region.
+	 *
+	 * A match that reaches NICE is taken as it is: positions inside it
+	 * still go into the trees, but their matches are dropped. Otherwise a
+	 * long repeat would be measured again from every position within it.
+	 **/
+	private void findMatches(byte[] src, int offset, int length) {
+		Arrays.fill(head, -1);
+		int count = 0;
+		int skip = 0;
+
+		for (int i = 0; i < length; i++) {
+			matchFirst[i] = count;
+			if (i + Lz.MIN_MATCH > length) {
+				continue;
+			}
+
+			/*
+			 * Room for a full descent's worth of matches
+			 */
+			if (matchLength.length < count + DEPTH + 1) {
+				matchLength = Arrays.copyOf(matchLength, matchLength.length * 2);
+				matchDistance = Arrays.copyOf(matchDistance, matchDistance.length * 2);
+			}
+			int before = count;
+			count = insert(src, offset, i, length, count);
+			if (i < skip) {
+				count = before;
+			} else if (count > before && matchLength[count - 1] == NICE) {
+				extend(src, offset, i, length, count - 1);
+				skip = i + matchLength[count - 1];
+			}
+		}
+		matchFirst[length] = count;
+	}
+
+
+	/**
+	 * Adds position pos to its hash's binary tree, recording each match
+	 * longer than the ones before it on the way down.
+	 *
+	 * The tree is ordered by the bytes following each position. Walking
+	 * down towards pos splits the tree into the positions that sort before
+	 * it and after it, which become pos's two subtrees, so pos is the new
+	 * root. len0 and len1 are how many bytes are already known to match
+	 * on each side, so comparisons never start from scratch.
+	 *
+	 * @return	The new number of recorded matches
+	 **/
+	private int insert(byte[] src, int base, int pos, int length, int count) {
+		int limit = Math.min(length - pos, NICE);
+		int h = hash(src, base + pos);
+		int current = head[h];
+		head[h] = pos;
+
+		int mask = Lz.WINDOW - 1;
+		int ptr0 = 2 * (pos & mask) + 1;
+		int ptr1 = 2 * (pos & mask);
+		int len0 = 0;
+		int len1 = 0;
+		int best = Lz.MIN_MATCH - 1;
+
+		for (int depth = DEPTH; ; depth--) {
+			if (current < 0 || depth == 0 || pos - current > Lz.WINDOW) {
+				son[ptr0] = -1;
+				son[ptr1] = -1;
+				break;
+			}
+
+			int pair = 2 * (current & mask);
+			int a = base + current;
+			int b = base + pos;
+			int len = Math.min(len0, len1);
+			while (len < limit && src[a + len] == src[b + len]) {
+				len++;
+			}
+
+			if (len > best) {
+				best = len;
+				matchLength[count] = len;
+				matchDistance[count++] = pos - current;
+			}
+			if (len == limit) {
+				//Same bytes as far as we look: pos takes over its children
+				son[ptr1] = son[pair];
+				son[ptr0] = son[pair + 1];
+				break;
+			}
+
+			if ((src[a + len] & 0xFF) < (src[b + len] & 0xFF)) {
+				son[ptr1] = current;
+				ptr1 = pair + 1;
+				current = son[ptr1];
+				len1 = len;
+			} else {
+				son[ptr0] = current;
+				ptr0 = pair;
+				current = son[ptr0];
+				len0 = len;
+			}
+		}
+
+		return count;
+	}
+
+
+	/**
+	 * Lengthens a match that reached NICE as far as the bytes allow.
+	 **/
+	private void extend(byte[] src, int base, int pos, int length, int m) {
+		int limit = Math.min(length - pos, Lz.MAX_MATCH);
+		int a = base + pos - matchDistance[m];
+		int b = base + pos;
+		int len = matchLength[m];
+		while (len < limit && src[a + len] == src[b + len]) {
+			len++;
+		}
+		matchLength[m] = len;
+	}
+
+
+	private static int hash(byte[] src, int pos) {
+		int v = (src[pos] & 0xFF) | (src[pos + 1] & 0xFF) << 8
+			| (src[pos + 2] & 0xFF) << 16 | (src[pos + 3] & 0xFF) << 24;
+		return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+
+
+	/**
+	 * Offers a match of length l at position i as a way to reach i + l.
+	 *
+	 * @param	cost	Price of reaching i plus the match's distance
+	 **/
+	private void relax(int i, int l, int distance, int cost, int[] literalPrice) {
+		int s = Lz.slot(l - Lz.MIN_MATCH);
+		int bits = cost + literalPrice[256 + s] + Lz.extraBits(s);
+		if (bits < price[i + l]) {
+			price[i + l] = bits;
+			fromLength[i + l] = l;
+			fromDistance[i + l] = distance;
+		}
+	}
+
+
+	/**
+	 * Finds the cheapest parse under the given tables and stores it in lz.
+	 *
+	 * Every position is reached either by a literal from the one before
+	 * it, or by a match from further back. The matches at a position are
+	 * sorted by length, so each length is tried with the nearest distance
+	 * that reaches it.
+	 **/
+	private void choose(Lz lz, byte[] src, int offset, int length,
+			CodeTable literals, CodeTable distances) {
+		int[] literalPrice = new int[256 + Lz.SLOTS];
+		for (int s = 0; s < literalPrice.length; s++) {
+			int bits = literals.getLength(s);
+			literalPrice[s] = (bits == 0) ? UNUSED : bits;
+		}
+		int[] distancePrice = new int[Lz.SLOTS];
+		for (int s = 0; s < distancePrice.length; s++) {
+			int bits = distances.getLength(s);
+			distancePrice[s] = ((bits == 0) ? UNUSED : bits) + Lz.extraBits(s);
+		}
+
+		Arrays.fill(price, 1, length + 1, Integer.MAX_VALUE);
+		price[0] = 0;
+
+		for (int i = 0; i < length; i++) {
+			int here = price[i];
+
+			int bits = here + literalPrice[src[offset + i] & 0xFF];
+			if (bits < price[i + 1]) {
+				price[i + 1] = bits;
+				fromLength[i + 1] = 0;
+			}
+
+			int shortest = Lz.MIN_MATCH;
+			for (int m = matchFirst[i]; m < matchFirst[i + 1]; m++) {
+				int len = matchLength[m];
+				int distance = matchDistance[m];
+				int cost = here + distancePrice[Lz.slot(distance - 1)];
+
+				/*
+				 * Past NICE only the full length is worth trying
+				 */
+				int top = Math.min(len, NICE);
+				for (int l = shortest; l <= top; l++) {
+					relax(i, l, distance, cost, literalPrice);
+				}
+				if (len > top) {
+					relax(i, len, distance, cost, literalPrice);
+				}
+				shortest = len + 1;
+			}
+		}
+
+		/*
+		 * Walk back from the end, then emit the steps in order
+		 */
+		int steps = 0;
+		for (int i = length; i > 0; i -= Math.max(fromLength[i], 1)) {
+			steps++;
+		}
+		int[] path = new int[steps];
+		for (int i = length, k = steps; i > 0; i -= Math.max(fromLength[i], 1)) {
+			path[--k] = i;
+		}
+
+		lz.reserve(length);
+		int pos = 0;
+		for (int k = 0; k < steps; k++) {
+			int to = path[k];
+			if (fromLength[to] == 0) {
+				lz.addLiteral(src[offset + pos]);
+			} else {
+				lz.addMatch(fromLength[to], fromDistance[to]);
+			}
+			pos = to;
+		}
+	}
+}
@@ -0,0 +1,336 @@
+import java.util.Arrays;
+
+public class Order1 {
+	public static final int MAX_CLASSES = 16;		//Tables per block at most
+	private static final int TABLE_BITS = 256 * 5;	//Cost of storing one table
+	private static final int ROUNDS = 4;			//Refinement passes
+
+	private int[] pairCounts;		//Scratch: previous byte << 8 | byte
+	private long[] contextTotal;	//Scratch: occurrences of each previous byte
+	private int[] classOf;			//Scratch: class of each previous byte
+
+
+	/**
+	 * Creates a coder for order-1 blocks. Every byte is coded with a table
+	 * chosen by the byte before it. The 256 possible previous bytes are
+	 * clustered into at most MAX_CLASSES classes with similar statistics,
+	 * so the tables stay small enough to pay for themselves.
+	 *
+	 * The scratch arrays are kept between blocks.
+	 **/
+	public Order1() {
+		pairCounts = new int[65536];
+		contextTotal = new long[256];
+		classOf = new int[256];
+	}
+
+
+	/**
+	 * Encodes a region as an order-1 block:
+	 * 			classes   class map   tables   codes
+	 * The class count is a varint, the map is 4 bits per previous byte and
+	 * only present with more than one class. The first byte is coded as if
+	 * it followed a zero.
+	 **/
+	public void encode(byte[] src, int offset, int length, BitWriter out) {
+		int end = offset + length;
+
+		Arrays.fill(pairCounts, 0);
+		Arrays.fill(contextTotal, 0);
+		int prev = 0;
+		for (int i = offset; i < end; i++) {
+			int b = src[i] & 0xFF;
+			pairCounts[(prev << 8) | b]++;
+			contextTotal[prev]++;
+			prev = b;
+		}
+
+		int classes = cluster();
+
+		/*
+		 * One table per class, from the counts of its contexts
+		 */
+		long[][] counts = new long[classes][256];
+		for (int c = 0; c < 256; c++) {
+			if (contextTotal[c] > 0) {
+				long[] into = counts[classOf[c]];
+				for (int s = 0; s < 256; s++) {
+					into[s] += pairCounts[(c << 8) | s];
+				}
+			}
+		}
+
+		CodeTable[] tables = new CodeTable[classes];
+		for (int k = 0; k < classes; k++) {
+			tables[k] = CodeTable.fromCounts(counts[k]);
+		}
+
+		Varint.write(out, classes);
+		if (classes > 1) {
+			for (int c = 0; c < 256; c++) {
+				out.writeBits(classOf[c], 4);
+			}
+		}
+		for (CodeTable t : tables) {
+			t.write(out);
+		}
+
+		CodeTable[] byContext = new CodeTable[256];
+		for (int c = 0; c < 256; c++) {
+			byContext[c] = tables[classOf[c]];
+		}
+		prev = 0;
+		for (int i = offset; i < end; i++) {
+			int b = src[i] & 0xFF;
+			byContext[prev].encode(out, b);
+			prev = b;
+		}
+	}
+
+
+	/**
+	 * Groups the previous bytes into classes, filling in classOf.
+	 *
+	 * The most frequent contexts seed the classes, and every context then
+	 * joins the class whose statistics code it most cheaply, a few rounds
+	 * over. Finally classes are merged pairwise for as long as the table
+	 * saved is worth more than the bits lost by sharing it.
+	 *
+	 * @return	The number of classes used
+	 **/
+	private int cluster() {
+		/*
+		 * Seeds: the busiest contexts, one per class
+		 */
+		long[] ranked = new long[256];
+		int used = 0;
+		for (int c = 0; c < 256; c++) {
+			if (contextTotal[c] > 0) {
+				ranked[used++] = (contextTotal[c] << 8) | c;
+			}
+		}
+		Arrays.sort(ranked, 0, used);
+
+		int classes = Math.min(used, MAX_CLASSES);
+		if (classes <= 1) {
+			Arrays.fill(classOf, 0);
+			return 1;
+		}
+		Arrays.fill(classOf, -1);
+		for (int k = 0; k < classes; k++) {
+			classOf[(int)(ranked[used - 1 - k] & 0xFF)] = k;
+		}
+
+		long[][] counts = classCounts(classes);
+		double[][] cost = new double[classes][256];
+
+		for (int round = 0; round < ROUNDS; round++) {
+			/*
+			 * Estimated bits per symbol in each class. Unseen symbols get
+			 * half a count so moving a context in never looks free.
+			 */
+			for (int k = 0; k < classes; k++) {
+				long total = 0;
+				for (int s = 0; s < 256; s++) {
+					total += counts[k][s];
+				}
+				double scale = Math.log(total + 128.0);
+				for (int s = 0; s < 256; s++) {
+					cost[k][s] = (scale - Math.log(counts[k][s] + 0.5)) / Math.log(2);
+				}
+			}
+
+			/*
+			 * Move each context to its cheapest class
+			 */
+			for (int c = 0; c < 256; c++) {
+				if (contextTotal[c] == 0) {
+					continue;
+				}
+				int best = 0;
+				double bestBits = Double.MAX_VALUE;
+				for (int k = 0; k < classes; k++) {
+					double bits = 0;
+					for (int s = 0; s < 256; s++) {
+						bits += pairCounts[(c << 8) | s] * cost[k][s];
+					}
+					if (bits < bestBits) {
+						bestBits = bits;
+						best = k;
+					}
+				}
+				classOf[c] = best;
+			}
+
+			counts = classCounts(classes);
+		}
+
+		/*
+		 * Merge the cheapest pair while it saves space. Classes left empty
+		 * by the rounds above merge for free.
+		 */
+		double[] bits = new double[classes];
+		boolean[] alive = new boolean[classes];
+		for (int k = 0; k < classes; k++) {
+			bits[k] = entropy(counts[k], null);
+			alive[k] = true;
+		}
+
+		int live = classes;
+		while (live > 1) {
+			int bestA = -1;
+			int bestB = -1;
+			double bestGain = 0;
+			for (int a = 0; a < classes; a++) {
+				for (int b = a + 1; b < classes && alive[a]; b++) {
+					if (!alive[b]) {
+						continue;
+					}
+					double gain = bits[a] + bits[b] + TABLE_BITS
+						- entropy(counts[a], counts[b]);
+					if (gain > bestGain) {
+						bestGain = gain;
+						bestA = a;
+						bestB = b;
+					}
+				}
+			}
+			if (bestA < 0) {
+				break;
+			}
+
+			for (int s = 0; s < 256; s++) {
+				counts[bestA][s] += counts[bestB][s];
+			}
+			bits[bestA] = entropy(counts[bestA], null);
+			alive[bestB] = false;
+			live--;
+			for (int c = 0; c < 256; c++) {
+				if (classOf[c] == bestB) {
+					classOf[c] = bestA;
+				}
+			}
+		}
+
+		/*
+		 * Number the surviving classes from zero. Contexts that never
+		 * occur were never assigned, and go in the first class.
+		 */
+		int[] renumber = new int[classes];
+		int next = 0;
+		for (int k = 0; k < classes; k++) {
+			renumber[k] = alive[k] ? next++ : -1;
+		}
+		for (int c = 0; c < 256; c++) {
+			classOf[c] = (classOf[c] < 0) ? 0 : renumber[classOf[c]];
+		}
+
+		return next;
+	}
+
+
+	/**
+	 * Sums the counts of every context in each class. Contexts not yet
+	 * assigned to a class are skipped.
+	 **/
+	private long[][] classCounts(int classes) {
+		long[][] counts = new long[classes][256];
+
+		for (int c = 0; c < 256; c++) {
+			int k = classOf[c];
+			if (contextTotal[c] == 0 || k < 0) {
+				continue;
+			}
+			for (int s = 0; s < 256; s++) {
+				counts[k][s] += pairCounts[(c << 8) | s];
+			}
+		}
+
+		return counts;
+	}
+
+
+	/**
+	 * Ideal size in bits of coding the given counts, or of two sets of
+	 * counts coded together when b is not NULL.
+	 **/
+	private static double entropy(long[] a, long[] b) {
+		long total = 0;
+		for (int s = 0; s < 256; s++) {
+			total += a[s] + ((b == null) ? 0 : b[s]);
+		}
+
+		double bits = 0;
+		for (int s = 0; s < 256; s++) {
+			long n = a[s] + ((b == null) ? 0 : b[s]);
+			if (n > 0) {
+				bits += n * Math.log((double)total / n);
+			}
+		}
+
+		return bits / Math.log(2);
+	}
+
+
+	/**
+	 * Reads the class map and tables at the start of an order-1 block.
+	 *
+	 * @return	The table for each previous byte, or NULL if the map or a
+	 * 			table is corrupt
+	 **/
+	public static CodeTable[] readTables(BitReader in) {
+		long classes = Varint.read(in);
+		if (classes < 1 || classes > MAX_CLASSES) {
+			return null;
+		}
+
+		int[] map = new int[256];
+		if (classes > 1) {
+			for (int c = 0; c < 256; c++) {
+				map[c] = in.readBits(4);
+				if (map[c] >= classes) {
+					return null;
+				}
+			}
+		}
+
+		CodeTable[] tables = new CodeTable[(int)classes];
+		for (int k = 0; k < classes; k++) {
+			tables[k] = CodeTable.read(in, 256);
+			if (tables[k] == null) {
+				return null;
+			}
+		}
+
+		CodeTable[] byContext = new CodeTable[256];
+		for (int c = 0; c < 256; c++) {
+			byContext[c] = tables[map[c]];
+		}
+		return byContext;
+	}
+
+
+	/**
+	 * Decodes an order-1 block into raw.
+	 *
+	 * @return	False if the block is corrupt
+	 **/
+	public static boolean decode(BitReader in, byte[] raw) {
+		CodeTable[] byContext = readTables(in);
+		if (byContext == null) {
+			return false;
+		}
+
+		int prev = 0;
+		for (int i = 0; i < raw.length; i++) {
+			int symbol = byContext[prev].decode(in);
+			if (symbol < 0) {
+				return false;
+			}
+			raw[i] = (byte)symbol;
+			prev = symbol;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,126 @@
+import java.util.Arrays;
+
+public class PairTable {
+	public static final int MAX_BITS = 32;			//Longest joint code kept
+	public static final int MIN_LENGTH = 1 << 16;	//Input worth building a table for
+
+	private long[] pairs;			//(code << 6) | length per byte pair, 0 if too long
+	private CodeTable table;		//Table the pairs were built from, if any
+	private long[] codes;			//Or the codes and lengths they were
+	private int[] lengths;			//built from
+
+
+	/**
+	 * Creates an empty table of joint codes for byte pairs. Entry
+	 * (a << 8) | b holds the code of a followed by the code of b, so an
+	 * encoder can handle two bytes with one look-up and one append. Pairs
+	 * whose codes add up to more than MAX_BITS have no entry and are
+	 * coded a byte at a time.
+	 *
+	 * Building the table touches all 65536 pairs, so it is only built on
+	 * first use and rebuilt when the codes change, see update().
+	 **/
+	public PairTable() {
+		pairs = null;
+		table = null;
+		codes = null;
+		lengths = null;
+	}
+
+
+	/**
+	 * Makes the pairs match a code table, rebuilding them only if it is
+	 * not the table they were built from. Tables never change, so the
+	 * same object means the same codes.
+	 **/
+	public void update(CodeTable table) {
+		if (table == this.table) {
+			return;
+		}
+		long[] c = new long[256];
+		int[] l = new int[256];
+		for (int s = 0; s < 256; s++) {
+			c[s] = table.getCode(s);
+			l[s] = table.getLength(s);
+		}
+		build(c, l);
+		this.table = table;
+	}
+
+
+	/**
+	 * Check if the pairs were built from a code table, so using them for
+	 * it costs nothing extra.
+	 **/
+	public boolean matches(CodeTable table) {
+		return table != null && table == this.table;
+	}
+
+
+	/**
+	 * Makes the pairs match the first 256 of a set of codes, rebuilding
+	 * them only if the codes differ from last time.
+	 **/
+	public void update(long[] codes, int[] lengths) {
+		if (this.codes != null && table == null
+				&& Arrays.equals(this.codes, 0, 256, codes, 0, 256)
+				&& Arrays.equals(this.lengths, 0, 256, lengths, 0, 256)) {
+			return;
+		}
+		build(Arrays.copyOf(codes, 256), Arrays.copyOf(lengths, 256));
+		table = null;
+	}
+
+
+	private void build(long[] c, int[] l) {
+		if (pairs == null) {
+			pairs = new long[1 << 16];
+		}
+		codes = c;
+		lengths = l;
+		for (int a = 0; a < 256; a++) {
+			for (int b = 0; b < 256; b++) {
+				int length = l[a] + l[b];
+				pairs[(a << 8) | b] = (length > MAX_BITS || l[a] == 0 || l[b] == 0)
+					? 0 : (((c[a] << l[b]) | c[b]) << 6) | length;
+			}
+		}
+	}
+
+
+	/**
+	 * The joint code of two bytes.
+	 *
+	 * @return	(code << 6) | length, or 0 if the pair must be coded a
+	 * 			byte at a time
+	 **/
+	public long get(int first, int second) {
+		return pairs[(first << 8) | second];
+	}
+
+
+	/**
+	 * Appends the codes of a region, two bytes at a time where it can.
+	 * The output is the same as coding each byte on its own. Every single
+	 * code must fit in 32 bits, as CodeTable codes do.
+	 **/
+	public void encode(BitWriter out, byte[] src, int offset, int length) {
+		int end = offset + length;
+		int i = offset;
+		for (; i + 1 < end; i += 2) {
+			int a = src[i] & 0xFF;
+			int b = src[i + 1] & 0xFF;
+			long pair = pairs[(a << 8) | b];
+			if (pair != 0) {
+				out.writeBits((int)(pair >>> 6), (int)pair & 0x3F);
+			} else {
+				out.writeBits((int)codes[a], lengths[a]);
+				out.writeBits((int)codes[b], lengths[b]);
+			}
+		}
+		if (i < end) {
+			int a = src[i] & 0xFF;
+			out.writeBits((int)codes[a], lengths[a]);
+		}
+	}
+}
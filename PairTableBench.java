@@ -0,0 +1,83 @@
+import java.util.Arrays;
+import java.util.Random;
+
+public class PairTableBench {
+	public static void main(String[] args) {
+		int size = 1 << 25;
+		byte[] uniform = new byte[size];
+		new Random(11).nextBytes(uniform);
+
+		/*
+		 * Geometric byte values, like text or small integers: a few short
+		 * codes and a long tail
+		 */
+		byte[] skewed = new byte[size];
+		Random r = new Random(11);
+		for (int i = 0; i < size; i++) {
+			skewed[i] = (byte)Math.min(255, (int)(-Math.log(1 - r.nextDouble()) * 6));
+		}
+
+		CodeTable uniformTable = table(uniform);
+		CodeTable skewedTable = table(skewed);
+		BitWriter out = new BitWriter(size * 3);
+		PairTable pairs = new PairTable();
+
+		for (int round = 0; round < 5; round++) {
+			System.out.println("Round " + round);
+			report("  single, uniform", single(out, uniformTable, uniform), size);
+			report("  pairs,  uniform", paired(out, pairs, uniformTable, uniform), size);
+			report("  single, skewed ", single(out, skewedTable, skewed), size);
+			report("  pairs,  skewed ", paired(out, pairs, skewedTable, skewed), size);
+		}
+
+		/*
+		 * Both paths must produce the same bits
+		 */
+		single(out, skewedTable, skewed);
+		byte[] expected = out.toByteArray();
+		paired(out, pairs, skewedTable, skewed);
+		if (!Arrays.equals(expected, out.toByteArray())) {
+			System.out.println("Pair coding differs from single coding");
+			System.exit(1);
+		}
+	}
+
+
+	private static CodeTable table(byte[] data) {
+		Histogram h = new Histogram();
+		h.add(data, 0, data.length);
+		return CodeTable.fromCounts(h.counts());
+	}
+
+
+	/**
+	 * Coding a byte at a time, as writeHuffman does for short blocks.
+	 **/
+	private static long single(BitWriter out, CodeTable table, byte[] data) {
+		long starttime = System.nanoTime();
+		out.reset();
+		for (int i = 0; i < data.length; i++) {
+			table.encode(out, data[i] & 0xFF);
+		}
+		return System.nanoTime() - starttime;
+	}
+
+
+	/**
+	 * Coding two bytes at a time. Switching tables every call includes
+	 * the rebuild, once per 32 MB.
+	 **/
+	private static long paired(BitWriter out, PairTable pairs, CodeTable table, byte[] data) {
+		long starttime = System.nanoTime();
+		out.reset();
+		pairs.update(table);
+		pairs.encode(out, data, 0, data.length);
+		return System.nanoTime() - starttime;
+	}
+
+
+	private static void report(String name, long nanos, int bytes) {
+		System.out.println(name + ": " + (nanos / 1000000) + "ms, "
+			+ String.format("%.2f", (double)bytes / nanos) + " GB/s");
+	}
+}
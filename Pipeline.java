@@ -0,0 +1,116 @@
+public class Pipeline {
+	public static final int SLOTS = 8;				//Slots in each ring
+	public static final int SLOT_SIZE = 1 << 16;	//Bytes per slot
+
+	private RingBuffer input;		//Reader thread -> coder
+	private RingBuffer output;		//Coder -> writer thread
+	private Thread reader;
+	private Thread writer;
+	private volatile boolean failed;
+
+
+	/**
+	 * Starts a reader thread filling the input ring from br, and a writer
+	 * thread emptying the output ring into bw. The calling thread sits in
+	 * between, taking slots from input() and filling slots from output(),
+	 * so disk and CPU work overlap.
+	 *
+	 * The reader starts at br's current position, which must be on a byte
+	 * boundary. The writer writes whole bytes to bw, which must have no
+	 * partial byte pending.
+	 *
+	 * @param	br	Source, read in whole bytes
+	 * @param	bw	Target, written in whole bytes
+	 **/
+	public Pipeline(ByteReader br, ByteWriter bw) {
+		input = new RingBuffer(SLOTS, SLOT_SIZE);
+		output = new RingBuffer(SLOTS, SLOT_SIZE);
+		failed = false;
+
+		reader = new Thread(() -> read(br), "011-reader");
+		writer = new Thread(() -> write(bw), "011-writer");
+		reader.start();
+		writer.start();
+	}
+
+
+	/**
+	 * Reader stage: fills slots until the source runs dry.
+	 **/
+	private void read(ByteReader br) {
+		try {
+			while (true) {
+				RingBuffer.Slot slot = input.claim();
+				if (slot == null) {
+					return;
+				}
+
+				slot.length = br.read(slot.data, 0, slot.data.length);
+				if (slot.length <= 0) {
+					//An error must not look like the end of the source
+					failed |= br.readFailure();
+					break;
+				}
+				input.publish();
+			}
+		} catch (InterruptedException ie) {
+			failed = true;
+		}
+		input.close();
+	}
+
+
+	/**
+	 * Writer stage: writes slots until the coder closes the ring.
+	 **/
+	private void write(ByteWriter bw) {
+		try {
+			RingBuffer.Slot slot;
+			while ((slot = output.take()) != null) {
+				if (!bw.writeRaw(slot.data, 0, slot.length)) {
+					failed = true;
+					output.abort();
+					return;
+				}
+				output.release();
+			}
+		} catch (InterruptedException ie) {
+			failed = true;
+		}
+	}
+
+
+	/**
+	 * Ring the coder takes source bytes from.
+	 **/
+	public RingBuffer input() {
+		return input;
+	}
+
+
+	/**
+	 * Ring the coder puts finished bytes into.
+	 **/
+	public RingBuffer output() {
+		return output;
+	}
+
+
+	/**
+	 * Called by the coder once its last output slot is published. Waits for
+	 * the writer to drain, and stops the reader if the coder quit early.
+	 *
+	 * @return	True if every stage finished cleanly
+	 **/
+	public boolean finish() {
+		output.close();
+		input.abort();
+		try {
+			writer.join();
+			reader.join();
+		} catch (InterruptedException ie) {
+			failed = true;
+		}
+		return !failed && !output.isAborted();
+	}
+}
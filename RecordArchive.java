@@ -0,0 +1,331 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RecordArchive {
+	public static final int MAGIC = 0x30313152;	//"011R"
+
+	private FileChannel channel;	//Archive being read
+	private CodeTable table;		//Table shared by all records
+	private long[] offsets;			//Payload position of each record, plus end
+	private int[] sizes;			//Original length of each record
+	private long payload;			//File position where the payload starts
+
+
+	/**
+	 * Opens a record archive for random access. The header and offset index
+	 * are loaded up front; records are only read when asked for.
+	 *
+	 * Check loadFailure() after instantiating.
+	 *
+	 * @param	file	The archive to open
+	 **/
+	public RecordArchive(String file) {
+		try {
+			channel = new RandomAccessFile(file, "r").getChannel();
+			readIndex();
+		} catch (FileNotFoundException fnfe) {
+			System.out.println("Unable to load file. Check filename.");
+			channel = null;
+		} catch (IOException ioe) {
+			System.out.println("Archive corrupt: " + ioe.getMessage());
+			close();
+			channel = null;
+		}
+	}
+
+
+	/**
+	 * Writes a set of records to an archive. All records share one Huffman
+	 * table built from their combined byte counts. Each record starts on a
+	 * byte boundary so it can be decoded on its own.
+	 *
+	 * The archive is laid out as:
+	 * 			"011R"  length   header   payload
+	 * where length is the 4-byte size of the header. The header holds the
+	 * code lengths for all 256 byte values, the record count, and for every
+	 * record the varint distance from the previous record's start and the
+	 * record's original length.
+	 *
+	 * @param	file	Target file
+	 * @param	records	Records to store, in order
+	 * @return	True if the archive was written
+	 **/
+	public static boolean write(String file, List<byte[]> records) {
+		/*
+		 * One table for everything
+		 */
+		long[] counts = new long[256];
+		for (byte[] record : records) {
+			for (byte b : record) {
+				counts[b & 0xFF]++;
+			}
+		}
+		CodeTable codes = CodeTable.fromCounts(counts);
+
+		/*
+		 * Encode each record, remembering where it starts
+		 */
+		BitWriter body = new BitWriter(1 << 16);
+		long[] starts = new long[records.size()];
+		for (int i = 0; i < records.size(); i++) {
+			starts[i] = body.size();
+			for (byte b : records.get(i)) {
+				codes.encode(body, b & 0xFF);
+			}
+			body.align();
+		}
+
+		BitWriter header = new BitWriter(1024 + records.size() * 4);
+		codes.write(header);
+		header.align();
+		Varint.write(header, records.size());
+
+		long previous = 0;
+		for (int i = 0; i < records.size(); i++) {
+			Varint.write(header, starts[i] - previous);
+			Varint.write(header, records.get(i).length);
+			previous = starts[i];
+		}
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(header.size());
+			header.writeTo(out);
+			body.writeTo(out);
+		} catch (IOException ioe) {
+			System.out.println("Couldn't write archive: " + ioe.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Loads the code table and offset index.
+	 **/
+	private void readIndex() throws IOException {
+		ByteBuffer prefix = ByteBuffer.allocate(8);
+		readFully(prefix, 0);
+		if (prefix.getInt(0) != MAGIC) {
+			throw new IOException("not a record archive");
+		}
+
+		int headerSize = prefix.getInt(4);
+		if (headerSize < 0 || headerSize > channel.size() - 8) {
+			throw new IOException("header size out of range");
+		}
+		ByteBuffer header = ByteBuffer.allocate(headerSize);
+		readFully(header, 8);
+		payload = 8L + headerSize;
+		long end = channel.size() - payload;
+
+		BitReader in = new BitReader(header.array(), 0, headerSize);
+		table = CodeTable.read(in, 256);
+		if (table == null) {
+			throw new IOException("bad code table");
+		}
+		in.align();
+
+		//Every record takes at least two bytes of the header
+		long n = Varint.read(in);
+		if (n < 0 || n > headerSize / 2) {
+			throw new IOException("record count out of range");
+		}
+		offsets = new long[(int)n + 1];
+		sizes = new int[(int)n];
+		long position = 0;
+		for (int i = 0; i < n; i++) {
+			long delta = Varint.read(in);
+			long size = Varint.read(in);
+			if (delta < 0 || delta > end - position) {
+				throw new IOException("offset of record " + i + " out of range");
+			}
+			position += delta;
+			if (size < 0 || size > Integer.MAX_VALUE) {
+				throw new IOException("size of record " + i + " out of range");
+			}
+			offsets[i] = position;
+			sizes[i] = (int)size;
+		}
+		offsets[(int)n] = end;
+		if (in.position() > (long)headerSize * 8) {
+			throw new IOException("header ends early");
+		}
+
+		//Each code is at least one bit, and each record must fit its span
+		for (int i = 0; i < n; i++) {
+			long span = offsets[i + 1] - offsets[i];
+			if (span > Integer.MAX_VALUE || sizes[i] > span * 8) {
+				throw new IOException("size of record " + i + " exceeds its codes");
+			}
+		}
+	}
+
+
+	/**
+	 * Decodes a single record without touching any other.
+	 *
+	 * @param	i	Index of the record
+	 * @return	The original bytes, or NULL if i is out of range or the
+	 * 			record is corrupt
+	 **/
+	public byte[] get(int i) {
+		if (i < 0 || i >= sizes.length) {
+			System.out.println("No record " + i);
+			return null;
+		}
+
+		ByteBuffer raw = ByteBuffer.allocate((int)(offsets[i + 1] - offsets[i]));
+		try {
+			readFully(raw, payload + offsets[i]);
+		} catch (IOException ioe) {
+			System.out.println("Failed reading record " + i);
+			return null;
+		}
+
+		BitReader in = new BitReader(raw.array(), 0, raw.capacity());
+		byte[] out = new byte[sizes[i]];
+		for (int k = 0; k < out.length; k++) {
+			int symbol = table.decode(in);
+			if (symbol < 0) {
+				System.out.println("Record " + i + " corrupt: code not in table");
+				return null;
+			}
+			out[k] = (byte)symbol;
+		}
+		if (in.position() > (long)raw.capacity() * 8) {
+			System.out.println("Record " + i + " corrupt: codes end early");
+			return null;
+		}
+
+		return out;
+	}
+
+
+	/**
+	 * Number of records in the archive.
+	 **/
+	public int size() {
+		return sizes.length;
+	}
+
+
+	/**
+	 * Original length of all records together.
+	 **/
+	public long rawLength() {
+		long total = 0;
+		for (int size : sizes) {
+			total += size;
+		}
+		return total;
+	}
+
+
+	/**
+	 * Table shared by all records.
+	 **/
+	public CodeTable getTable() {
+		return table;
+	}
+
+
+	/**
+	 * Check if the archive was successfully loaded during initialization.
+	 **/
+	public boolean loadFailure() {
+		return channel == null;
+	}
+
+
+	/**
+	 * Closes the archive.
+	 **/
+	public void close() {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException ioe) {
+			System.out.println("File broke while closing");
+		}
+	}
+
+
+	/**
+	 * Positional read that keeps going until the buffer is full.
+	 **/
+	private void readFully(ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			int n = channel.read(dst, position);
+			if (n < 0) {
+				throw new IOException("unexpected end of file");
+			}
+			position += n;
+		}
+	}
+
+
+	/**
+	 * Splits a file into records at each newline.
+	 **/
+	private static List<byte[]> splitLines(String file) throws IOException {
+		List<byte[]> records = new ArrayList<>();
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b == '\n') {
+					records.add(line.toByteArray());
+					line.reset();
+				} else {
+					line.write(b);
+				}
+			}
+		}
+		if (line.size() > 0) {
+			records.add(line.toByteArray());
+		}
+
+		return records;
+	}
+
+
+	/**
+	 * Usage:
+	 * 		java RecordArchive pack <file>			one record per line
+	 * 		java RecordArchive get <file.011r> <i>	print record i
+	 **/
+	public static void main(String[] args) {
+		if (args.length >= 2 && args[0].equals("pack")) {
+			try {
+				List<byte[]> records = splitLines(args[1]);
+				if (write(args[1] + ".011r", records)) {
+					System.out.println("Packed " + records.size() + " records");
+				}
+			} catch (IOException ioe) {
+				System.out.println("Unable to load file. Check filename.");
+			}
+		} else if (args.length >= 3 && args[0].equals("get")) {
+			RecordArchive archive = new RecordArchive(args[1]);
+			if (archive.loadFailure()) {
+				return;
+			}
+
+			byte[] record = archive.get(Integer.parseInt(args[2]));
+			if (record != null) {
+				System.out.write(record, 0, record.length);
+				System.out.println();
+			}
+			archive.close();
+		} else {
+			System.out.println("Usage: RecordArchive pack <file> | get <file.011r> <i>");
+		}
+	}
+}
@@ -0,0 +1,155 @@
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RingBuffer {
+	private final Slot[] slots;			//Preallocated, reused forever
+	private long head;					//Next slot to be taken
+	private long tail;					//Next slot to be published
+	private boolean closed;				//Producer has no more to give
+	private boolean aborted;			//Consumer wants no more
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private final Condition notFull;
+
+
+	/**
+	 * A reusable byte array and the number of bytes in use.
+	 **/
+	public static class Slot {
+		public final byte[] data;
+		public int length;
+
+		Slot(int size) {
+			data = new byte[size];
+			length = 0;
+		}
+	}
+
+
+	/**
+	 * Creates a bounded ring connecting one producer to one consumer. The
+	 * producer blocks when every slot is full, which holds a fast stage back
+	 * to the speed of a slow one.
+	 *
+	 * @param	count	Number of slots
+	 * @param	size	Bytes per slot
+	 **/
+	public RingBuffer(int count, int size) {
+		slots = new Slot[count];
+		for (int i = 0; i < count; i++) {
+			slots[i] = new Slot(size);
+		}
+		head = tail = 0;
+		closed = aborted = false;
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		notFull = lock.newCondition();
+	}
+
+
+	/**
+	 * Producer: waits for a free slot to fill.
+	 *
+	 * @return	The slot, or NULL if the consumer has aborted
+	 **/
+	public Slot claim() throws InterruptedException {
+		lock.lock();
+		try {
+			while (tail - head == slots.length && !aborted) {
+				notFull.await();
+			}
+			return aborted ? null : slots[(int)(tail % slots.length)];
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Producer: hands the claimed slot to the consumer.
+	 **/
+	public void publish() {
+		lock.lock();
+		try {
+			tail++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Producer: marks the end of the data.
+	 **/
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Consumer: waits for the next filled slot.
+	 *
+	 * @return	The slot, or NULL once the producer has closed and every
+	 * 			slot has been taken
+	 **/
+	public Slot take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (head == tail && !closed && !aborted) {
+				notEmpty.await();
+			}
+			return (head == tail || aborted) ? null : slots[(int)(head % slots.length)];
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Consumer: returns the taken slot for reuse.
+	 **/
+	public void release() {
+		lock.lock();
+		try {
+			head++;
+			notFull.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Either side: stops the ring, waking anyone blocked on it.
+	 **/
+	public void abort() {
+		lock.lock();
+		try {
+			aborted = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * True if abort() has been called.
+	 **/
+	public boolean isAborted() {
+		lock.lock();
+		try {
+			return aborted;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+public class RunLength {
+	public static final int MAX_RUN = 1 << 20;		//Longer runs are split
+	private static final int MIN_AVERAGE = 3;		//Average run worth trying for
+
+
+	/**
+	 * Check if a region has long enough runs for a run-length block to
+	 * have a chance. Only counts runs, so it is cheap next to encoding.
+	 **/
+	public static boolean worthTrying(byte[] src, int offset, int length) {
+		if (length < 2) {
+			return false;
+		}
+
+		int runs = 1;
+		for (int i = offset + 1; i < offset + length; i++) {
+			if (src[i] != src[i - 1]) {
+				runs++;
+			}
+		}
+		return (long)runs * MIN_AVERAGE <= length;
+	}
+
+
+	/**
+	 * Encodes a region as a run-length block:
+	 * 			byte lengths   run lengths   codes
+	 * Every run is a byte code followed by a code for its length, so a
+	 * long run costs a few bits instead of at least one bit per byte. Run
+	 * lengths are sent as (length - 1) in the slots of Lz.slot(), with
+	 * their own table.
+	 **/
+	public static void encode(byte[] src, int offset, int length, BitWriter out) {
+		int end = offset + length;
+		int[] runs = new int[length];
+		long[] byteCounts = new long[256];
+		long[] runCounts = new long[Lz.SLOTS];
+
+		int count = 0;
+		for (int i = offset; i < end; ) {
+			int stop = Math.min(end, i + MAX_RUN);
+			int j = i + 1;
+			while (j < stop && src[j] == src[i]) {
+				j++;
+			}
+			runs[count++] = j - i;
+			byteCounts[src[i] & 0xFF]++;
+			runCounts[Lz.slot(j - i - 1)]++;
+			i = j;
+		}
+
+		CodeTable bytes = CodeTable.fromCounts(byteCounts);
+		CodeTable lengths = CodeTable.fromCounts(runCounts);
+		bytes.write(out);
+		lengths.write(out);
+
+		for (int r = 0, i = offset; r < count; r++) {
+			bytes.encode(out, src[i] & 0xFF);
+			int value = runs[r] - 1;
+			int s = Lz.slot(value);
+			lengths.encode(out, s);
+			int extra = Lz.extraBits(s);
+			if (extra > 0) {
+				out.writeBits(value - Lz.slotBase(s), extra);
+			}
+			i += runs[r];
+		}
+	}
+
+
+	/**
+	 * Reads the tables at the start of a run-length block.
+	 *
+	 * @return	The byte table, then the run length table, or NULL if
+	 * 			either is corrupt
+	 **/
+	public static CodeTable[] readTables(BitReader in) {
+		CodeTable bytes = CodeTable.read(in, 256);
+		if (bytes == null) {
+			return null;
+		}
+		CodeTable lengths = CodeTable.read(in, Lz.SLOTS);
+		if (lengths == null) {
+			return null;
+		}
+		return new CodeTable[] {bytes, lengths};
+	}
+
+
+	/**
+	 * Decodes a run-length block into raw, a whole run at a time.
+	 *
+	 * @return	False if the block is corrupt
+	 **/
+	public static boolean decode(BitReader in, byte[] raw) {
+		CodeTable[] tables = readTables(in);
+		if (tables == null) {
+			return false;
+		}
+		CodeTable bytes = tables[0];
+		CodeTable lengths = tables[1];
+
+		int pos = 0;
+		while (pos < raw.length) {
+			int b = bytes.decode(in);
+			int s = lengths.decode(in);
+			if (b < 0 || s < 0) {
+				return false;
+			}
+			int run = Lz.slotBase(s) + in.readBits(Lz.extraBits(s)) + 1;
+			if (run > raw.length - pos) {
+				return false;
+			}
+			Arrays.fill(raw, pos, pos + run, (byte)b);
+			pos += run;
+		}
+
+		return true;
+	}
+}
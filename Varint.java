@@ -0,0 +1,79 @@
+import java.io.*;
+
+public class Varint {
+	/**
+	 * Writes an unsigned value in 7-bit groups, least significant group
+	 * first. The high bit of each byte marks that another group follows.
+	 *
+	 * @param	out		Destination
+	 * @param	value	Non-negative value to write
+	 **/
+	public static void write(BitWriter out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.writeBits((int)((value & 0x7F) | 0x80), 8);
+			value >>>= 7;
+		}
+		out.writeBits((int)value, 8);
+	}
+
+
+	/**
+	 * Reads a value written by write(BitWriter, long).
+	 **/
+	public static long read(BitReader in) {
+		long value = 0;
+		int shift = 0;
+		int b;
+
+		do {
+			b = in.readBits(8);
+			value |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0 && shift < 64);
+
+		return value;
+	}
+
+
+	/**
+	 * Stream version of write(BitWriter, long).
+	 **/
+	public static void write(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+
+
+	/**
+	 * Stream version of read(BitReader).
+	 **/
+	public static long read(DataInput in) throws IOException {
+		long value = 0;
+		int shift = 0;
+		int b;
+
+		do {
+			b = in.readUnsignedByte();
+			value |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0 && shift < 64);
+
+		return value;
+	}
+
+
+	/**
+	 * Number of bytes write() would use for the value.
+	 **/
+	public static int size(long value) {
+		int bytes = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			bytes++;
+		}
+		return bytes;
+	}
+}